@@ -46,7 +46,7 @@ import com.topjohnwu.superuser.Shell;
             APPLICATION_LOG
         },
         reportSenderFactoryClasses = {CustomHttpSenderFactory.class},
-        applicationLogFile = "log-debug.txt",
+        applicationLogFile = Logger.REPORT_FILE,
         applicationLogFileLines = 1000)
 public class MosMetroApp extends Application {
     static {
@@ -45,7 +45,7 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.TextView;
 
-import java.util.LinkedList;
+import java.util.List;
 
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.services.ConnectionService;
@@ -274,7 +274,7 @@ public class DebugActivity extends Activity {
             return show_debug ? Logger.LEVEL.DEBUG : Logger.LEVEL.INFO;
         }
 
-        private LinkedList<CharSequence> getDataset() {
+        private List<CharSequence> getDataset() {
             return Logger.read(getLevel());
         }
 
@@ -65,6 +65,7 @@ import pw.thedrhax.mosmetro.services.ConnectionService;
 import pw.thedrhax.mosmetro.services.ReceiverService;
 import pw.thedrhax.mosmetro.updater.UpdateChecker;
 import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.PermissionUtils;
 import pw.thedrhax.util.Version;
 
@@ -378,6 +379,7 @@ public class SettingsActivity extends Activity {
                     .addToBackStack(id)
                     .commit();
         } catch (IllegalStateException ex) { // https://stackoverflow.com/q/7575921
+            Logger.prepareReport();
             ACRA.getErrorReporter().handleException(ex);
         }
     }
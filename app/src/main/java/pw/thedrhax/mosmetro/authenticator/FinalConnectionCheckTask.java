@@ -21,6 +21,7 @@ package pw.thedrhax.mosmetro.authenticator;
 import java.util.HashMap;
 
 import pw.thedrhax.mosmetro.R;
+import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.Logger;
 
 public class FinalConnectionCheckTask extends NamedTask {
@@ -33,6 +34,9 @@ public class FinalConnectionCheckTask extends NamedTask {
 
     @Override
     public boolean run(HashMap<String, Object> vars) {
+        // Pooled connections and DNS answers may be spoofed by the portal
+        OkHttp.flush();
+
         if (p.isConnected()) {
             Logger.log(p.context.getString(R.string.auth_connected));
             vars.put("result", Provider.RESULT.CONNECTED);
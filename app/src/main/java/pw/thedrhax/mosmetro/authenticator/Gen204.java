@@ -19,8 +19,13 @@
 package pw.thedrhax.mosmetro.authenticator;
 
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
+import android.preference.PreferenceManager;
 
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -30,7 +35,6 @@ import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
-import pw.thedrhax.util.Randomizer;
 
 public class Gen204 {
     /**
@@ -60,12 +64,48 @@ public class Gen204 {
             "www.google.com/generate_204"
     };
 
-    private final Listener<Boolean> running = new Listener<Boolean>(true);
+    /**
+     * Delay before sending the same probe to another host (parallel mode)
+     */
+    private static final int HEDGE_DELAY = 1000;
+
+    /**
+     * Maximum number of hosts tried by each probe
+     */
+    private static final int MAX_TRIES = 3;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Time during which the last result is shared between all Gen204 instances
+     */
+    private static final int CACHE_TTL = 3000;
+
+    private static final Object cache_lock = new Object();
+    private static Gen204Result cache = null;
+    private static long cache_ts = 0;
+    private static int cache_generation = 0;
+    private static boolean checking = false;
+
+    private final Listener<Boolean> running = new Listener<Boolean>(true) {
+        @Override
+        public void onChange(Boolean new_value) {
+            // Wake up check() waiting for another instance
+            synchronized (cache_lock) {
+                cache_lock.notifyAll();
+            }
+        }
+    };
     private final Client client;
-    private final Randomizer random;
+    private final Gen204Scoreboard scoreboard;
+    private final boolean pref_parallel;
+    private final Object lock = new Object();
 
     private Gen204Result last_result = null;
 
+    // Scoreboard key of the network, obtained once per check
+    private volatile String network_key = null;
+
     public Gen204(Context context, Listener<Boolean> running) {
         this.running.subscribe(running);
 
@@ -73,7 +113,28 @@ public class Gen204 {
                 .setFollowRedirects(false)
                 .setRunningListener(this.running);
 
-        random = new Randomizer(context);
+        scoreboard = Gen204Scoreboard.get(context);
+
+        pref_parallel = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean("pref_gen204_parallel", false);
+    }
+
+    /**
+     * Check if it makes no sense to repeat the request using another host.
+     */
+    private static boolean isFatal(IOException ex) {
+        if (ex instanceof SSLPeerUnverifiedException) return true;
+
+        if (ex instanceof SSLHandshakeException) {
+            String message = ex.getMessage();
+
+            if (message == null) return true;
+
+            // Ignore "I/O error during system call, Connection reset by peer"
+            return !message.contains("Connection reset by peer");
+        }
+
+        return false;
     }
 
     /**
@@ -82,31 +143,26 @@ public class Gen204 {
     private HttpResponse request(String schema, String[] urls) throws IOException {
         HttpResponse res = HttpResponse.EMPTY(client);
         IOException last_ex = null;
+        List<String> used = new LinkedList<>();
 
-        for (int i = 0; i < 3; i++) {
-            String url = schema + "://" + random.choose(urls);
+        for (int i = 0; i < MAX_TRIES; i++) {
+            String url = scoreboard.choose(network_key, schema, urls, used);
+            used.add(url);
 
+            long start = System.currentTimeMillis();
             try {
                 res = client.get(url).execute();
                 last_ex = null;
-                Logger.log(this, url + " | " + res.getResponseCode());
+                scoreboard.success(network_key, url, System.currentTimeMillis() - start);
+                Logger.log(this, "%s | %d", url, res.getResponseCode());
                 break;
             } catch (IOException ex) {
-                Logger.log(this, url + " | " + ex.toString());
+                Logger.log(this, "%s | %s", url, ex);
                 last_ex = ex;
 
-                if (ex instanceof SSLPeerUnverifiedException) break;
-
-                if (ex instanceof SSLHandshakeException) {
-                    String message = ex.getMessage();
-
-                    if (message == null) break;
+                if (running.get()) scoreboard.failure(network_key, url);
 
-                    // Ignore "I/O error during system call, Connection reset by peer"
-                    if (message.contains("Connection reset by peer")) continue;
-
-                    break;
-                }
+                if (isFatal(ex)) break;
             }
         }
 
@@ -117,57 +173,332 @@ public class Gen204 {
         return res;
     }
 
-    private Gen204Result tripleCheck() {
-        HttpResponse unrel, rel_https, rel_http;
+    /**
+     * Response code of a probe that hasn't finished yet
+     */
+    static final int PENDING = -2;
 
-        // Unreliable HTTP check (needs to be rechecked by HTTPS)
+    /**
+     * Response code of a probe that has failed on all hosts
+     */
+    static final int FAILED = -1;
+
+    enum Verdict {
+        PENDING,        // more answers are required
+        UNREACHABLE,    // unreliable probe has failed, network is most probably unreachable
+        POSITIVE,       // confirmed by reliable HTTPS probe
+        FALSE_POSITIVE, // unreliable probe was answered by provider
+        NEGATIVE,       // confirmed negative
+        FALSE_NEGATIVE, // unreliable probe was intercepted, but HTTPS works
+        UNEXPECTED
+    }
+
+    /**
+     * Decision rules shared by tripleCheck() and parallelCheck().
+     *
+     * @param unrel Response code of unreliable HTTP probe, PENDING or FAILED
+     * @param rel_https Response code of reliable HTTPS probe, PENDING or FAILED
+     * @param rel_http Response code of reliable HTTP probe, PENDING or FAILED
+     */
+    static Verdict decide(int unrel, int rel_https, int rel_http) {
+        if (unrel == PENDING) return Verdict.PENDING;
+        if (unrel == FAILED) return Verdict.UNREACHABLE;
+        if (rel_https == PENDING) return Verdict.PENDING;
+
+        if (unrel == 204) {
+            if (rel_https == 204) return Verdict.POSITIVE;
+            if (rel_http == PENDING) return Verdict.PENDING;
+            if (rel_http != FAILED && rel_http != 204) return Verdict.FALSE_POSITIVE;
+        } else {
+            if (rel_https == FAILED) return Verdict.NEGATIVE;
+            if (rel_https == 204) return Verdict.FALSE_NEGATIVE;
+        }
+
+        return Verdict.UNEXPECTED;
+    }
+
+    private static int code(HttpResponse response) {
+        return response != null ? response.getResponseCode() : FAILED;
+    }
+
+    /**
+     * @return Gen204Result or null if more answers are required
+     */
+    private Gen204Result result(HttpResponse unrel, HttpResponse rel_https, HttpResponse rel_http,
+                                Verdict verdict) {
+        switch (verdict) {
+            case PENDING:
+                return null;
+
+            case POSITIVE:
+                return new Gen204Result(rel_https);
+
+            case FALSE_POSITIVE:
+                Logger.log(this, "False positive detected");
+                return new Gen204Result(rel_http);
+
+            case NEGATIVE:
+                return new Gen204Result(unrel);
+
+            case FALSE_NEGATIVE:
+                if (last_result == null || !last_result.isFalseNegative()) {
+                    Logger.log(this, "False negative detected");
+                }
+                return new Gen204Result(rel_https, unrel);
+
+            case UNEXPECTED:
+                Logger.log(this, "Unexpected state");
+                return new Gen204Result(HttpResponse.EMPTY(client));
+
+            default: // UNREACHABLE
+                return new Gen204Result(HttpResponse.EMPTY(client));
+        }
+    }
+
+    private HttpResponse tryRequest(String schema, String[] urls) {
         try {
-            unrel = request("http", URL_DEFAULT);
+            return request(schema, urls);
         } catch (IOException ex) {
-            // network is most probably unreachable
-            return new Gen204Result(HttpResponse.EMPTY(client));
+            return null;
         }
+    }
+
+    private Gen204Result tripleCheck() {
+        // Unreliable HTTP check (needs to be rechecked by HTTPS)
+        HttpResponse unrel = tryRequest("http", URL_DEFAULT);
+        if (unrel == null) return result(null, null, null, Verdict.UNREACHABLE);
 
         // Reliable HTTPS check
-        try {
-            rel_https = request("https", URL_RELIABLE);
-        } catch (IOException ex) {
-            rel_https = null;
+        HttpResponse rel_https = tryRequest("https", URL_RELIABLE);
+
+        Verdict verdict = decide(code(unrel), code(rel_https), PENDING);
+        if (verdict != Verdict.PENDING) {
+            return result(unrel, rel_https, null, verdict);
         }
 
-        if (unrel.getResponseCode() == 204) {
-            if (rel_https == null || rel_https.getResponseCode() != 204) {
-                // Reliable HTTP check
-                try {
-                    rel_http = request("http", URL_RELIABLE);
-                } catch (IOException ex) {
-                    rel_http = null;
-                }
+        // Reliable HTTP check (only to detect false positives)
+        HttpResponse rel_http = tryRequest("http", URL_RELIABLE);
+        verdict = decide(code(unrel), code(rel_https), code(rel_http));
+        return result(unrel, rel_https, rel_http, verdict);
+    }
+
+    /**
+     * Single generate_204 probe sent to one or more hosts of the same class.
+     *
+     * The first host is requested immediately, the next one is requested
+     * after HEDGE_DELAY or as soon as the previous request fails. The first
+     * received response wins.
+     */
+    private class Probe {
+        private final String schema;
+        private final String[] urls;
+        private final List<String> used = new LinkedList<>();
+
+        private HttpResponse response = null;
+        private boolean fatal = false;
+        private boolean cancelled = false;
+        private int failed = 0;
+
+        Probe(String schema, String[] urls) {
+            this.schema = schema;
+            this.urls = urls;
+        }
+
+        private String nextUrl() {
+            String url = scoreboard.choose(network_key, schema, urls, used);
+            used.add(url);
+            return url;
+        }
 
-                if (rel_http != null && rel_http.getResponseCode() != 204) {
-                    Logger.log(this, "False positive detected");
-                    return new Gen204Result(rel_http); // false positive
+        // All methods below must be called while holding the lock
+        void launch() {
+            if (isDone() || used.size() >= MAX_TRIES) return;
+
+            final String url = nextUrl();
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    HttpResponse res = null;
+                    IOException error = null;
+
+                    long start = System.currentTimeMillis();
+                    try {
+                        res = client.get(url).execute();
+                        scoreboard.success(network_key, url, System.currentTimeMillis() - start);
+                        Logger.log(Gen204.this, "%s | %d", url, res.getResponseCode());
+                    } catch (IOException ex) {
+                        Logger.log(Gen204.this, "%s | %s", url, ex);
+                        error = ex;
+                    }
+
+                    synchronized (lock) {
+                        if (error == null) {
+                            if (response == null) response = res;
+                        } else {
+                            // Cancelled requests say nothing about the host
+                            if (!cancelled && running.get()) scoreboard.failure(network_key, url);
+
+                            failed++;
+                            fatal |= isFatal(error);
+
+                            // Do not wait for the hedge delay after failure
+                            if (failed == used.size()) launch();
+                        }
+
+                        lock.notifyAll();
+                    }
                 }
-            } else {
-                return new Gen204Result(rel_https); // confirmed positive
-            }
-        } else {
-            if (rel_https == null) {
-                return new Gen204Result(unrel); // confirmed negative
-            } else if (rel_https.getResponseCode() == 204) {
-                if (last_result == null || !last_result.isFalseNegative()) {
-                    Logger.log(this, "False negative detected");
+            });
+        }
+
+        // Hedge the request if no answer was received yet
+        void hedge() {
+            if (used.size() - failed == 1) launch();
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        boolean isDone() {
+            return response != null || fatal || cancelled || failed >= MAX_TRIES;
+        }
+
+        /**
+         * @return Received response or null if all requests have failed
+         */
+        HttpResponse getResponse() {
+            return response;
+        }
+    }
+
+    private static int code(Probe probe) {
+        if (!probe.isDone()) return PENDING;
+        return code(probe.getResponse());
+    }
+
+    /**
+     * @return Gen204Result or null if more answers are required
+     */
+    private Gen204Result decide(Probe unrel, Probe rel_https, Probe rel_http) {
+        Verdict verdict = decide(code(unrel), code(rel_https), code(rel_http));
+        return result(unrel.getResponse(), rel_https.getResponse(), rel_http.getResponse(), verdict);
+    }
+
+    /**
+     * Concurrent version of tripleCheck(). All three probes are sent at once
+     * and the result is returned as soon as it can be decided.
+     */
+    private synchronized Gen204Result parallelCheck() {
+        Probe unrel = new Probe("http", URL_DEFAULT);
+        Probe rel_https = new Probe("https", URL_RELIABLE);
+        Probe rel_http = new Probe("http", URL_RELIABLE);
+
+        long hedge_ts = System.currentTimeMillis() + HEDGE_DELAY;
+        Gen204Result res = null;
+
+        synchronized (lock) {
+            unrel.launch();
+            rel_https.launch();
+            rel_http.launch();
+
+            try {
+                while (running.get()) {
+                    res = decide(unrel, rel_https, rel_http);
+                    if (res != null) break;
+
+                    long now = System.currentTimeMillis();
+
+                    if (now >= hedge_ts) {
+                        unrel.hedge();
+                        rel_https.hedge();
+                        rel_http.hedge();
+                        hedge_ts = now + HEDGE_DELAY;
+                    }
+
+                    try {
+                        lock.wait(Math.max(hedge_ts - now, 1));
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
                 }
-                return new Gen204Result(rel_https, unrel);
+            } finally {
+                unrel.cancel();
+                rel_https.cancel();
+                rel_http.cancel();
             }
         }
 
-        Logger.log(this, "Unexpected state");
-        return new Gen204Result(HttpResponse.EMPTY(client));
+        client.stop(); // cancel requests that are not needed anymore
+
+        return res != null ? res : new Gen204Result(HttpResponse.EMPTY(client));
     }
 
+    /**
+     * Drop the cached result. Must be called every time the result of the
+     * check may have changed: after authentication requests and on network
+     * changes.
+     */
+    public static void invalidate() {
+        synchronized (cache_lock) {
+            cache_generation++;
+            cache = null;
+        }
+    }
+
+    /**
+     * Check the connection or reuse the result of a very recent check.
+     * Concurrent callers wait for the check that is already in progress.
+     */
     public Gen204Result check() {
-        Gen204Result res = tripleCheck();
+        int generation;
+
+        synchronized (cache_lock) {
+            while (true) {
+                if (cache != null && System.currentTimeMillis() - cache_ts < CACHE_TTL) {
+                    Logger.log(this, "Using cached result");
+                    last_result = cache;
+                    return cache;
+                }
+
+                if (!checking) break;
+
+                if (!running.get()) {
+                    return new Gen204Result(HttpResponse.EMPTY(client));
+                }
+
+                try {
+                    cache_lock.wait(); // notified when the check is finished or stopped
+                } catch (InterruptedException ex) {
+                    return new Gen204Result(HttpResponse.EMPTY(client));
+                }
+            }
+
+            checking = true;
+            generation = cache_generation;
+        }
+
+        Gen204Result res = null;
+
+        try {
+            network_key = scoreboard.networkKey();
+            res = pref_parallel ? parallelCheck() : tripleCheck();
+            scoreboard.save();
+        } finally {
+            synchronized (cache_lock) {
+                checking = false;
+
+                // Interrupted and outdated results are not shared
+                if (res != null && running.get() && generation == cache_generation) {
+                    cache = res;
+                    cache_ts = System.currentTimeMillis();
+                }
+
+                cache_lock.notifyAll();
+            }
+        }
+
         last_result = res;
         return res;
     }
@@ -176,7 +507,11 @@ public class Gen204 {
         return last_result != null ? last_result : check();
     }
 
-    public class Gen204Result {
+    /**
+     * Result doesn't depend on the Gen204 instance that has created it, so it
+     * can be shared through the cache without keeping that instance alive.
+     */
+    public static class Gen204Result {
         private final HttpResponse response;
         private final HttpResponse falseNegative;
 
@@ -0,0 +1,246 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.authenticator;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import pw.thedrhax.util.Randomizer;
+import pw.thedrhax.util.WifiUtils;
+
+/**
+ * Persistent health statistics of generate_204 endpoints.
+ *
+ * Statistics are stored separately for every Wi-Fi network (SSID + BSSID).
+ * Each endpoint has an exponentially weighted moving average of its latency
+ * and a count of consecutive failures. Failing endpoints are put into the
+ * penalty box for a period that grows with every failure and expires by itself.
+ *
+ * Key of the network is obtained once per check by networkKey() and then passed
+ * to all other methods, because each call to WifiUtils is an IPC. Only success()
+ * and failure() modify the storage.
+ *
+ * @see Gen204
+ */
+class Gen204Scoreboard {
+    private static final String PREF_KEY = "Gen204Scoreboard";
+
+    private static final int MAX_NETWORKS = 16;
+
+    private static final double EWMA_ALPHA = 0.3;
+    private static final long DEFAULT_LATENCY = 1000;
+    private static final long PENALTY_MIN = 30 * 1000;
+    private static final long PENALTY_MAX = 30 * 60 * 1000;
+
+    private static Gen204Scoreboard instance = null;
+
+    private final SharedPreferences settings;
+    private final WifiUtils wifi;
+    private final Randomizer random;
+    private JSONObject storage;
+
+    private Gen204Scoreboard(Context context) {
+        this.settings = PreferenceManager.getDefaultSharedPreferences(context);
+        this.wifi = new WifiUtils(context);
+        this.random = new Randomizer(context);
+
+        try {
+            storage = (JSONObject) new JSONParser().parse(settings.getString(PREF_KEY, "{}"));
+        } catch (ParseException | ClassCastException ex) {
+            storage = new JSONObject();
+        }
+    }
+
+    static synchronized Gen204Scoreboard get(Context context) {
+        if (instance == null) {
+            instance = new Gen204Scoreboard(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    String networkKey() {
+        return wifi.getSSID() + "/" + wifi.getBSSID();
+    }
+
+    private JSONObject network(String key) {
+        JSONObject network = (JSONObject) storage.get(key);
+
+        if (network == null) {
+            network = new JSONObject();
+            storage.put(key, network);
+
+            // Forget the least recently used networks
+            while (storage.size() > MAX_NETWORKS) {
+                Object oldest = null;
+                long oldest_ts = Long.MAX_VALUE;
+
+                for (Object name : storage.keySet()) {
+                    long ts = getLong((JSONObject) storage.get(name), "ts", 0);
+                    if (ts < oldest_ts) {
+                        oldest = name;
+                        oldest_ts = ts;
+                    }
+                }
+
+                storage.remove(oldest);
+            }
+        }
+
+        network.put("ts", System.currentTimeMillis());
+        return network;
+    }
+
+    private JSONObject host(String key, String url) {
+        JSONObject network = network(key);
+        JSONObject hosts = (JSONObject) network.get("hosts");
+
+        if (hosts == null) {
+            hosts = new JSONObject();
+            network.put("hosts", hosts);
+        }
+
+        JSONObject host = (JSONObject) hosts.get(url);
+
+        if (host == null) {
+            host = new JSONObject();
+            hosts.put(url, host);
+        }
+
+        return host;
+    }
+
+    private static long getLong(JSONObject json, String key, long def_value) {
+        Object value = json.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : def_value;
+    }
+
+    /**
+     * @return Existing statistics of the host or null, never creates new entries
+     */
+    private JSONObject findHost(String key, String url) {
+        JSONObject network = (JSONObject) storage.get(key);
+        if (network == null) return null;
+
+        JSONObject hosts = (JSONObject) network.get("hosts");
+        if (hosts == null) return null;
+
+        return (JSONObject) hosts.get(url);
+    }
+
+    private long score(String key, String url, long now) {
+        JSONObject host = findHost(key, url);
+        if (host == null) return DEFAULT_LATENCY;
+
+        long latency = getLong(host, "ewma", DEFAULT_LATENCY);
+
+        if (getLong(host, "penalty", 0) > now) {
+            latency += PENALTY_MAX; // healthy hosts always go first
+        }
+
+        return latency;
+    }
+
+    /**
+     * Choose the best URL that is not used yet.
+     *
+     * @param key    Network key returned by networkKey()
+     * @param schema URL schema (http or https)
+     * @param urls   Array of URLs without schema
+     * @param used   URLs that must be avoided if possible
+     * @return URL with schema
+     */
+    synchronized String choose(String key, String schema, String[] urls, Collection<String> used) {
+        long now = System.currentTimeMillis();
+        String best = null;
+        long best_score = Long.MAX_VALUE;
+
+        // Start from a random position to spread equal scores between hosts
+        int offset = (int) (Math.random() * urls.length);
+
+        for (int i = 0; i < urls.length; i++) {
+            String url = schema + "://" + urls[(i + offset) % urls.length];
+
+            if (used.contains(url)) continue;
+
+            long score = score(key, url, now);
+            if (score < best_score) {
+                best = url;
+                best_score = score;
+            }
+        }
+
+        if (best == null) {
+            best = schema + "://" + random.choose(urls);
+        }
+
+        return best;
+    }
+
+    synchronized void success(String key, String url, long latency) {
+        JSONObject host = host(key, url);
+
+        long ewma = getLong(host, "ewma", -1);
+        if (ewma < 0) {
+            ewma = latency;
+        } else {
+            ewma = Math.round(EWMA_ALPHA * latency + (1 - EWMA_ALPHA) * ewma);
+        }
+
+        host.put("ewma", ewma);
+        host.remove("failures");
+        host.remove("penalty");
+    }
+
+    synchronized void failure(String key, String url) {
+        JSONObject host = host(key, url);
+
+        long failures = getLong(host, "failures", 0) + 1;
+        long penalty = Math.min(PENALTY_MIN << Math.min(failures - 1, 16), PENALTY_MAX);
+
+        host.put("failures", failures);
+        host.put("penalty", System.currentTimeMillis() + penalty);
+    }
+
+    synchronized void save() {
+        // Drop expired penalties to keep the storage small
+        long now = System.currentTimeMillis();
+        for (Object network : storage.values()) {
+            JSONObject hosts = (JSONObject) ((JSONObject) network).get("hosts");
+            if (hosts == null) continue;
+
+            Iterator<Object> i = hosts.values().iterator();
+            while (i.hasNext()) {
+                JSONObject host = (JSONObject) i.next();
+                if (!host.containsKey("ewma") && getLong(host, "penalty", 0) < now) {
+                    i.remove();
+                }
+            }
+        }
+
+        settings.edit().putString(PREF_KEY, storage.toJSONString()).apply();
+    }
+}
@@ -20,13 +20,18 @@ package pw.thedrhax.mosmetro.authenticator;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 
 import org.acra.ACRA;
 
+import java.text.ParseException;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.authenticator.providers.MAInet;
@@ -37,6 +42,7 @@ import pw.thedrhax.mosmetro.authenticator.providers.MosMetroV2WV;
 import pw.thedrhax.mosmetro.authenticator.providers.MosMetroV3;
 import pw.thedrhax.mosmetro.authenticator.providers.Unknown;
 import pw.thedrhax.mosmetro.httpclient.Client;
+import pw.thedrhax.mosmetro.httpclient.DnsClient;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.Listener;
@@ -79,6 +85,44 @@ public abstract class Provider extends LinkedList<Task> implements Task {
      */
     protected Client client;
 
+    /**
+     * Detection rules of all supported Providers in order of priority
+     */
+    private static ProviderDetector[] detectors() {
+        return new ProviderDetector[] {
+                MosMetroV3.DETECTOR,
+                MosMetroV2WV.DETECTOR,
+                MosMetroV2.DETECTOR,
+                MosMetroV1.DETECTOR,
+                MAInet.DETECTOR,
+                Bmstu.DETECTOR
+        };
+    }
+
+    /**
+     * Index of detection rules by redirect host
+     */
+    private static Map<String,List<ProviderDetector>> index = null;
+
+    private static synchronized Map<String,List<ProviderDetector>> getIndex() {
+        if (index == null) {
+            index = new HashMap<>();
+
+            for (ProviderDetector detector : detectors()) {
+                List<ProviderDetector> candidates = index.get(detector.getHost());
+
+                if (candidates == null) {
+                    candidates = new LinkedList<>();
+                    index.put(detector.getHost(), candidates);
+                }
+
+                candidates.add(detector);
+            }
+        }
+
+        return index;
+    }
+
     /**
      * Find Provider using already received response from server.
      * @param context   Android Context required to create the new instance.
@@ -86,17 +130,34 @@ public abstract class Provider extends LinkedList<Task> implements Task {
      * @return          New Provider instance.
      *
      * @see Client
+     * @see ProviderDetector
      */
     @NonNull public static Provider find(Context context, HttpResponse response) {
-        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-
-        if (MosMetroV3.match(response, settings)) return new MosMetroV3(context, response);
-        else if (MosMetroV2WV.match(response, settings)) return new MosMetroV2WV(context, response);
-        else if (MosMetroV2.match(response)) return new MosMetroV2(context, response);
-        else if (MosMetroV1.match(response)) return new MosMetroV1(context, response);
-        else if (MAInet.match(response)) return new MAInet(context, response);
-        else if (Bmstu.match(response)) return new Bmstu(context, response);
-        else return new Unknown(context, response);
+        String redirect;
+
+        try {
+            redirect = response.parseAnyRedirect();
+        } catch (ParseException ex) {
+            return new Unknown(context, response);
+        }
+
+        String host = Uri.parse(redirect).getHost();
+
+        if (host != null) {
+            List<ProviderDetector> candidates = getIndex().get(host.toLowerCase(Locale.ENGLISH));
+
+            if (candidates != null) {
+                SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+
+                for (ProviderDetector detector : candidates) {
+                    if (detector.match(redirect, settings)) {
+                        return detector.create(context, response);
+                    }
+                }
+            }
+        }
+
+        return new Unknown(context, response);
     }
 
     /**
@@ -201,6 +262,8 @@ public abstract class Provider extends LinkedList<Task> implements Task {
      */
     public RESULT start(HashMap<String,Object> vars) {
         ProviderMetrics metrics = new ProviderMetrics(this);
+        int[] http_stats = OkHttp.getStatistics();
+        int[] dns_stats = DnsClient.getStatistics();
 
         if (!nested) {
             metrics.start();
@@ -264,8 +327,12 @@ public abstract class Provider extends LinkedList<Task> implements Task {
                 Logger.log(context.getString(R.string.error,
                         context.getString(R.string.auth_error_fatal)
                 ));
+                Logger.prepareReport();
                 ACRA.getErrorReporter().handleSilentException(ex);
                 break;
+            } finally {
+                // Any Task may change the connection state (POST requests, WebView)
+                Gen204.invalidate();
             }
         }
 
@@ -273,7 +340,22 @@ public abstract class Provider extends LinkedList<Task> implements Task {
 
         deinit();
 
-        if (!nested) Logger.date("<< ");
+        if (!nested) {
+            int[] http_stats_end = OkHttp.getStatistics();
+            Logger.log(this, "Requests: %d, new connections: %d, TLS handshakes: %d",
+                    http_stats_end[0] - http_stats[0],
+                    http_stats_end[1] - http_stats[1],
+                    http_stats_end[2] - http_stats[2]
+            );
+
+            int[] dns_stats_end = DnsClient.getStatistics();
+            Logger.log(this, "DNS cache hits: %d, misses: %d",
+                    dns_stats_end[0] - dns_stats[0],
+                    dns_stats_end[1] - dns_stats[1]
+            );
+
+            Logger.date("<< ");
+        }
 
         return (RESULT)vars.get("result");
     }
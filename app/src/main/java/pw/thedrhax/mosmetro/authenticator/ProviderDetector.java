@@ -0,0 +1,74 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.authenticator;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.regex.Pattern;
+
+import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+
+/**
+ * Detection rule of a Provider.
+ *
+ * Every Provider declares the host of the redirect it expects and an optional
+ * pattern for the whole redirect URL. Provider.find() extracts the redirect only
+ * once and checks only the rules registered for its host.
+ *
+ * @see Provider
+ */
+public abstract class ProviderDetector {
+    private final String host;
+    private final Pattern pattern;
+
+    /**
+     * @param host  Host of the redirect (lower case, without port)
+     * @param regex Pattern for the whole redirect URL or null to match any URL
+     */
+    public ProviderDetector(@NonNull String host, @Nullable String regex) {
+        this.host = host;
+        this.pattern = regex != null ? Pattern.compile(regex) : null;
+    }
+
+    public ProviderDetector(@NonNull String host) {
+        this(host, null);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Override this method to make the Provider depend on user preferences.
+     */
+    protected boolean isEnabled(SharedPreferences settings) {
+        return true;
+    }
+
+    public boolean match(String redirect, SharedPreferences settings) {
+        return isEnabled(settings) && (pattern == null || pattern.matcher(redirect).matches());
+    }
+
+    @NonNull
+    public abstract Provider create(Context context, HttpResponse response);
+}
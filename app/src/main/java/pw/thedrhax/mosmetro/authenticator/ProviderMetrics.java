@@ -23,22 +23,28 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import android.os.Build;
 
-import java.io.IOException;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-import pw.thedrhax.mosmetro.BuildConfig;
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.activities.SettingsActivity;
 import pw.thedrhax.mosmetro.activities.SilentActionActivity;
-import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
-import pw.thedrhax.mosmetro.updater.BackendRequest;
+import pw.thedrhax.mosmetro.services.BackendWorker;
+import pw.thedrhax.mosmetro.services.StatisticsWorker;
 import pw.thedrhax.util.Notify;
 import pw.thedrhax.util.UUID;
 import pw.thedrhax.util.Version;
 import pw.thedrhax.util.WifiUtils;
 
 class ProviderMetrics {
+    /**
+     * Everything after the connection is finished runs here to avoid
+     * delaying the result of Provider.start().
+     */
+    private static final Executor executor = Executors.newSingleThreadExecutor();
+
     private final Provider p;
 
     ProviderMetrics(Provider provider) {
@@ -100,24 +106,32 @@ class ProviderMetrics {
             params.put("branch", (String) vars.get("branch"));
         }
 
-        String STATISTICS_URL = p.settings.getString(
-                BackendRequest.PREF_BACKEND_URL,
-                BuildConfig.API_URL_DEFAULT
-        ) + BuildConfig.API_REL_STATISTICS;
+        final boolean notify_donate = connected && !midsession;
 
-        try {
-            new OkHttp(p.context).post(STATISTICS_URL, params).execute();
-        } catch (IOException ignored) {}
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StatisticsWorker.add(p.context, params);
 
-        if (System.currentTimeMillis() - 6*60*60*1000 > p.settings.getLong("pref_worker_timestamp", 0)) {
-            new BackendRequest(p.context).run();
-        }
+                if (System.currentTimeMillis() - 6*60*60*1000 > p.settings.getLong("pref_worker_timestamp", 0)) {
+                    BackendWorker.runOnce(p.context);
+                }
+
+                if (notify_donate) {
+                    notifyDonate();
+                }
+            }
+        });
 
+        return false;
+    }
+
+    private void notifyDonate() {
         boolean pref_notify_donate = p.settings.getBoolean("pref_notify_donate", true);
         boolean pref_notify_donate_freq = p.settings.getBoolean("pref_notify_donate_freq", false);
         int stat_connections = p.settings.getInt("stat_connections", 0);
 
-        if (pref_notify_donate && connected && !midsession) {
+        if (pref_notify_donate) {
             stat_connections += 1;
             p.settings.edit().putInt("stat_connections", stat_connections).apply();
 
@@ -155,7 +169,5 @@ class ProviderMetrics {
                 notify.show();
             }
         }
-
-        return false;
     }
 }
@@ -59,10 +59,18 @@ public abstract class WebViewProvider extends Provider {
                 return false;
             }
 
-            while (wv == null) {
-                if (!running.sleep(100)) {
-                    deinit();
-                    return false;
+            synchronized (connection) {
+                while (wv == null) {
+                    if (!running.get()) {
+                        deinit();
+                        return false;
+                    }
+
+                    try {
+                        connection.wait(100);
+                    } catch (InterruptedException ex) {
+                        running.set(false);
+                    }
                 }
             }
         }
@@ -99,15 +107,20 @@ public abstract class WebViewProvider extends Provider {
      * Binding interface
      */
 
-    protected WebViewService wv = null;
+    protected volatile WebViewService wv = null;
 
     private ServiceConnection connection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
             if (iBinder instanceof WebViewService.WebViewBinder) {
-                wv = ((WebViewService.WebViewBinder) iBinder).getService();
-                wv.getRunningListener().subscribe(running);
-                wv.setClient(client);
+                WebViewService service = ((WebViewService.WebViewBinder) iBinder).getService();
+                service.getRunningListener().subscribe(running);
+                service.setClient(client);
+
+                synchronized (this) {
+                    wv = service;
+                    notifyAll();
+                }
             } else {
                 running.set(false);
             }
@@ -21,6 +21,8 @@ package pw.thedrhax.mosmetro.authenticator.providers;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import androidx.annotation.NonNull;
+
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.HashMap;
@@ -30,6 +32,7 @@ import pw.thedrhax.mosmetro.authenticator.FinalConnectionCheckTask;
 import pw.thedrhax.mosmetro.authenticator.InitialConnectionCheckTask;
 import pw.thedrhax.mosmetro.authenticator.NamedTask;
 import pw.thedrhax.mosmetro.authenticator.Provider;
+import pw.thedrhax.mosmetro.authenticator.ProviderDetector;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.util.Logger;
 
@@ -114,15 +117,15 @@ public class Bmstu extends Provider {
     }
 
     /**
-     * Checks if current network is supported by this Provider implementation.
-     * @param response  Instance of ParsedResponse.
-     * @return          True if response matches this Provider implementation.
+     * Detection rule used by Provider.find()
      */
-    public static boolean match(HttpResponse response) {
-        try {
-            return response.parseAnyRedirect().contains("lbpfs.bmstu.ru:8003");
-        } catch (ParseException ex1) {
-            return false;
+    public static final ProviderDetector DETECTOR = new ProviderDetector(
+            "lbpfs.bmstu.ru",
+            "^https?://lbpfs\\.bmstu\\.ru:8003([/?#].*)?$"
+    ) {
+        @NonNull @Override
+        public Provider create(Context context, HttpResponse response) {
+            return new Bmstu(context, response);
         }
-    }
+    };
 }
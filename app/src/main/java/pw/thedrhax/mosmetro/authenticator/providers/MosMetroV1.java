@@ -20,6 +20,8 @@ package pw.thedrhax.mosmetro.authenticator.providers;
 
 import android.content.Context;
 
+import androidx.annotation.NonNull;
+
 import org.jsoup.select.Elements;
 
 import java.io.IOException;
@@ -31,6 +33,7 @@ import pw.thedrhax.mosmetro.authenticator.FinalConnectionCheckTask;
 import pw.thedrhax.mosmetro.authenticator.InitialConnectionCheckTask;
 import pw.thedrhax.mosmetro.authenticator.NamedTask;
 import pw.thedrhax.mosmetro.authenticator.Provider;
+import pw.thedrhax.mosmetro.authenticator.ProviderDetector;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.util.Logger;
 
@@ -130,15 +133,12 @@ public class MosMetroV1 extends Provider {
     }
 
     /**
-     * Checks if current network is supported by this Provider implementation.
-     * @param response  Instance of ParsedResponse.
-     * @return          True if response matches this Provider implementation.
+     * Detection rule used by Provider.find()
      */
-    public static boolean match(HttpResponse response) {
-        try {
-            return response.parseAnyRedirect().contains("login.wi-fi.ru");
-        } catch (ParseException ex) {
-            return false;
+    public static final ProviderDetector DETECTOR = new ProviderDetector("login.wi-fi.ru") {
+        @NonNull @Override
+        public Provider create(Context context, HttpResponse response) {
+            return new MosMetroV1(context, response);
         }
-    }
+    };
 }
@@ -39,6 +39,7 @@ import pw.thedrhax.mosmetro.authenticator.InitialConnectionCheckTask;
 import pw.thedrhax.mosmetro.authenticator.InterceptorTask;
 import pw.thedrhax.mosmetro.authenticator.NamedTask;
 import pw.thedrhax.mosmetro.authenticator.Provider;
+import pw.thedrhax.mosmetro.authenticator.ProviderDetector;
 import pw.thedrhax.mosmetro.authenticator.Task;
 import pw.thedrhax.mosmetro.httpclient.Client;
 import pw.thedrhax.mosmetro.httpclient.Headers;
@@ -396,19 +397,15 @@ public class MosMetroV2 extends Provider {
     }
 
     /**
-     * Checks if current network is supported by this Provider implementation.
-     * @param response  Instance of ParsedResponse.
-     * @return          True if response matches this Provider implementation.
+     * Detection rule used by Provider.find()
      */
-    public static boolean match(HttpResponse response) {
-        String redirect;
-
-        try {
-            redirect = response.parseAnyRedirect();
-        } catch (ParseException ex) {
-            return false;
+    public static final ProviderDetector DETECTOR = new ProviderDetector(
+            "auth.wi-fi.ru",
+            "^https?://auth\\.wi-fi\\.ru/(auth|new|spb/)?(\\?.*)?$"
+    ) {
+        @NonNull @Override
+        public Provider create(Context context, HttpResponse response) {
+            return new MosMetroV2(context, response);
         }
-
-        return redirect.matches("^https?://auth\\.wi-fi\\.ru/(auth|new|spb/)?(\\?.*)?$");
-    }
+    };
 }
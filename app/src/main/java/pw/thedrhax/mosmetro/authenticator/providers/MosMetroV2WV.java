@@ -40,6 +40,7 @@ import pw.thedrhax.mosmetro.authenticator.InitialConnectionCheckTask;
 import pw.thedrhax.mosmetro.authenticator.InterceptorTask;
 import pw.thedrhax.mosmetro.authenticator.NamedTask;
 import pw.thedrhax.mosmetro.authenticator.Provider;
+import pw.thedrhax.mosmetro.authenticator.ProviderDetector;
 import pw.thedrhax.mosmetro.authenticator.Task;
 import pw.thedrhax.mosmetro.authenticator.WaitTask;
 import pw.thedrhax.mosmetro.authenticator.WebViewProvider;
@@ -49,6 +50,7 @@ import pw.thedrhax.mosmetro.httpclient.Headers;
 import pw.thedrhax.mosmetro.httpclient.HttpRequest;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.mosmetro.services.ConnectionService;
+import pw.thedrhax.util.AssetCache;
 import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.Util;
 
@@ -131,7 +133,7 @@ public class MosMetroV2WV extends WebViewProvider {
         add(new InterceptorTask(".*(ads\\.adfox\\.ru|mc\\.yandex\\.ru|ac\\.yandex\\.ru|\\.mp4$).*") {
             @Nullable @Override
             public HttpResponse request(Client client, HttpRequest request) throws IOException {
-                Logger.log(Logger.LEVEL.DEBUG, "Blocked: " + request.getUrl());
+                Logger.log(Logger.LEVEL.DEBUG, "Blocked: %s", request.getUrl());
                 return new HttpResponse(request, "");
             }
         });
@@ -146,7 +148,7 @@ public class MosMetroV2WV extends WebViewProvider {
             public HttpResponse request(Client client, HttpRequest request) throws IOException {
                 return new HttpResponse(
                         request,
-                        Util.readAsset(context, "MosMetroV2.js"),
+                        AssetCache.get(context, "MosMetroV2.js"),
                         "text/javascript"
                 );
             }
@@ -305,21 +307,20 @@ public class MosMetroV2WV extends WebViewProvider {
     }
 
     /**
-     * Checks if current network is supported by this Provider implementation.
-     * @param response  Instance of ParsedResponse.
-     * @return          True if response matches this Provider implementation.
+     * Detection rule used by Provider.find()
      */
-    public static boolean match(HttpResponse response, SharedPreferences settings) {
-        if (!settings.getBoolean("pref_mosmetro_v2_wv", false)) return false;
-
-        String redirect;
-
-        try {
-            redirect = response.parseAnyRedirect();
-        } catch (ParseException ex1) {
-            return false;
+    public static final ProviderDetector DETECTOR = new ProviderDetector(
+            "auth.wi-fi.ru",
+            "^https?://auth\\.wi-fi\\.ru/(auth|new|spb/)?(\\?.*)?$"
+    ) {
+        @Override
+        protected boolean isEnabled(SharedPreferences settings) {
+            return settings.getBoolean("pref_mosmetro_v2_wv", false);
         }
 
-        return redirect.matches("^https?://auth\\.wi-fi\\.ru/(auth|new|spb/)?(\\?.*)?$");
-    }
+        @NonNull @Override
+        public Provider create(Context context, HttpResponse response) {
+            return new MosMetroV2WV(context, response);
+        }
+    };
 }
@@ -23,6 +23,8 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
 
+import androidx.annotation.NonNull;
+
 import org.json.simple.JSONObject;
 
 import java.io.IOException;
@@ -34,6 +36,7 @@ import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.authenticator.InitialConnectionCheckTask;
 import pw.thedrhax.mosmetro.authenticator.NamedTask;
 import pw.thedrhax.mosmetro.authenticator.Provider;
+import pw.thedrhax.mosmetro.authenticator.ProviderDetector;
 import pw.thedrhax.mosmetro.httpclient.HttpResponse;
 import pw.thedrhax.util.Logger;
 
@@ -251,20 +254,17 @@ public class MosMetroV3 extends Provider {
     }
 
     /**
-     * Checks if current network is supported by this Provider implementation.
-     * @param response  Instance of ParsedResponse.
-     * @return          True if response matches this Provider implementation.
+     * Detection rule used by Provider.find()
      */
-    public static boolean match(HttpResponse response, SharedPreferences settings) {
-        if (!settings.getBoolean("pref_mosmetro_v3", true)) return false;
-
-        String redirect;
-        try {
-            redirect = response.parseAnyRedirect();
-        } catch (ParseException ex) {
-            return false;
+    public static final ProviderDetector DETECTOR = new ProviderDetector("welcome.wi-fi.ru") {
+        @Override
+        protected boolean isEnabled(SharedPreferences settings) {
+            return settings.getBoolean("pref_mosmetro_v3", true);
         }
 
-        return redirect.contains("welcome.wi-fi.ru");
-    }
+        @NonNull @Override
+        public Provider create(Context context, HttpResponse response) {
+            return new MosMetroV3(context, response);
+        }
+    };
 }
@@ -45,7 +45,12 @@ public abstract class Client {
     public final List<InterceptorTask> interceptors = new LinkedList<>();
     public final Headers headers;
 
-    private boolean intercepting = false;
+    private final ThreadLocal<Boolean> intercepting = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
     private boolean followRedirects = true;
     protected Context context;
     protected Randomizer random;
@@ -128,8 +133,8 @@ public abstract class Client {
         HttpResponse response = null;
 
         try {
-            if (!intercepting) {
-                intercepting = true;
+            if (!intercepting.get()) {
+                intercepting.set(true);
 
                 for (InterceptorTask i : interceptors) {
                     if (i.match(request.getUrl())) {
@@ -152,7 +157,7 @@ public abstract class Client {
                 }
             }
         } finally {
-            intercepting = false;
+            intercepting.set(false);
         }
 
         if (response == null) {
@@ -160,7 +165,9 @@ public abstract class Client {
         }
 
         if (response.isHtml() && !response.getUrl().isEmpty()) {
-            headers.setHeader(Headers.REFERER, response.getUrl());
+            synchronized (headers) {
+                headers.setHeader(Headers.REFERER, response.getUrl());
+            }
         }
 
         return response;
@@ -260,7 +267,7 @@ public abstract class Client {
                 last_ex = ex;
 
                 for (int i = 2; i <= tries; i++) {
-                    Logger.log(Logger.LEVEL.DEBUG, ex.toString());
+                    Logger.log(Logger.LEVEL.DEBUG, "%s", ex);
 
                     if (last_ex instanceof SSLException) {
                         throw last_ex;
@@ -270,9 +277,7 @@ public abstract class Client {
                         throw new InterruptedIOException();
                     }
 
-                    Logger.log(Client.this,
-                            "Retrying request (try " + i + " out of " + tries + ")"
-                    );
+                    Logger.log(Client.this, "Retrying request (try %d out of %d)", i, tries);
 
                     try {
                         return body();
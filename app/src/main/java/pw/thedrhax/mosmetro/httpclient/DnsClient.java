@@ -18,6 +18,7 @@
 
 package pw.thedrhax.mosmetro.httpclient;
 
+import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.Record;
@@ -29,22 +30,99 @@ import org.xbill.DNS.Type;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
+import androidx.annotation.Nullable;
 
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.Dns;
 import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.WifiUtils;
 
 public class DnsClient implements Dns {
+    private static final int TTL_SYSTEM = 30;   // seconds, system resolver doesn't report TTL
+    private static final int TTL_MAX = 600;     // seconds
+    private static final int TTL_NEGATIVE = 10; // seconds
+    private static final int RESOLUTION_DELAY = 50; // ms
+    private static final int QUERY_TIMEOUT = 2;     // seconds, for each dnsjava query
+    private static final int QUERY_RETRIES = 2;
+    private static final int LOOKUP_TIMEOUT = 5;    // seconds, for the whole race
+    private static final int MAX_SYSTEM_THREADS = 4;
+
+    /**
+     * Background lookups of the system resolver (race mode only). They can't be
+     * interrupted and have no timeout, so the number of threads stuck in them
+     * is limited. Timed out lookups are abandoned.
+     */
+    private static final ThreadPoolExecutor system_executor = new ThreadPoolExecutor(
+            MAX_SYSTEM_THREADS, MAX_SYSTEM_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>()
+    );
+
+    static {
+        system_executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Background dnsjava queries. Each of them is limited by QUERY_TIMEOUT and
+     * QUERY_RETRIES, so they never block threads for long and never wait in a
+     * queue behind the system resolver.
+     */
+    private static final ExecutorService query_executor = Executors.newCachedThreadPool();
+
+    private static final AtomicInteger stat_hits = new AtomicInteger(0);
+    private static final AtomicInteger stat_misses = new AtomicInteger(0);
+
     private final WifiUtils wifi;
     private ExtendedResolver dns;
     private final boolean pref_dnsjava;
+    private final boolean pref_dns_race;
+
+    /**
+     * Resolved addresses of a single host. Null addresses mean that the host
+     * doesn't exist (negative caching).
+     */
+    private static class Entry {
+        final List<InetAddress> addresses;
+        final long expires;
+
+        Entry(@Nullable List<InetAddress> addresses, long ttl) {
+            this.addresses = addresses;
+            this.expires = System.currentTimeMillis() + Math.min(ttl, TTL_MAX) * 1000;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+
+    /**
+     * Cache of all lookups made by this instance. DnsClient is recreated with
+     * the base client by OkHttp.flush() on network changes and after
+     * authentication, so this cache is never shared between networks.
+     */
+    private final Map<String, Entry> cache = new HashMap<>();
 
     private String[] getServers() {
         Set<String> servers = new HashSet<String>();
@@ -64,6 +142,7 @@ public class DnsClient implements Dns {
     public DnsClient(Context context) {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
         pref_dnsjava = settings.getBoolean("pref_dnsjava", false);
+        pref_dns_race = settings.getBoolean("pref_dns_race", false);
 
         wifi = new WifiUtils(context);
 
@@ -82,6 +161,8 @@ public class DnsClient implements Dns {
 
         try {
             dns = new ExtendedResolver(servers);
+            dns.setTimeout(QUERY_TIMEOUT);
+            dns.setRetries(QUERY_RETRIES);
         } catch (UnknownHostException ex) {
             Logger.log(Logger.LEVEL.DEBUG, ex);
             Logger.log(this, "Unable to initialize, using system resolver");
@@ -89,41 +170,229 @@ public class DnsClient implements Dns {
         }
     }
 
+    /**
+     * @return Number of cache hits and misses of all instances since the
+     *         process was started.
+     */
+    public static int[] getStatistics() {
+        return new int[] { stat_hits.get(), stat_misses.get() };
+    }
+
     @Override
     public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        String key = hostname.toLowerCase(Locale.ENGLISH);
+        Entry entry;
+
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+
+        if (entry != null && !entry.isExpired()) {
+            stat_hits.incrementAndGet();
+        } else {
+            stat_misses.incrementAndGet();
+            entry = resolve(hostname);
+
+            synchronized (cache) {
+                cache.put(key, entry);
+            }
+        }
+
+        if (entry.addresses == null) {
+            throw new UnknownHostException(hostname);
+        }
+
+        return new LinkedList<>(entry.addresses);
+    }
+
+    private Entry resolve(final String hostname) throws UnknownHostException {
         if (dns == null) {
-            return Dns.SYSTEM.lookup(hostname);
+            return resolveSystem(hostname);
+        }
+
+        if (pref_dnsjava || wifi.isPrivateDnsActive()) {
+            return resolveDirect(hostname);
+        }
+
+        if (pref_dns_race) {
+            return race(hostname);
+        }
+
+        try {
+            return resolveSystem(hostname);
+        } catch (UnknownHostException ignored) {}
+
+        return resolveDirect(hostname);
+    }
+
+    /**
+     * Query the system resolver and DNS servers of the network at the same time.
+     * The first positive answer is returned, the other query is cancelled.
+     */
+    private Entry race(final String hostname) throws UnknownHostException {
+        // Both services deliver results to the same queue
+        BlockingQueue<Future<Entry>> done = new LinkedBlockingQueue<>();
+        CompletionService<Entry> system = new ExecutorCompletionService<>(system_executor, done);
+        CompletionService<Entry> direct = new ExecutorCompletionService<>(query_executor, done);
+        List<Future<Entry>> futures = new LinkedList<>();
+        Entry negative = null;
+
+        futures.add(system.submit(() -> resolveSystem(hostname)));
+        futures.add(direct.submit(() -> resolveDirect(hostname)));
+
+        long deadline = System.currentTimeMillis() + LOOKUP_TIMEOUT * 1000;
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                long timeout = deadline - System.currentTimeMillis();
+                Future<Entry> future = done.poll(Math.max(timeout, 0), TimeUnit.MILLISECONDS);
+
+                if (future == null) {
+                    Logger.log(this, "Lookup timed out: " + hostname);
+                    break;
+                }
+
+                try {
+                    Entry entry = future.get();
+
+                    if (entry.addresses != null) {
+                        return entry;
+                    }
+
+                    negative = entry;
+                } catch (ExecutionException ex) {
+                    Logger.log(Logger.LEVEL.DEBUG, ex.getCause().toString());
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new UnknownHostException(hostname);
+        } finally {
+            for (Future<Entry> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (negative != null) {
+            return negative;
         }
 
-        if (!pref_dnsjava && !wifi.isPrivateDnsActive()) {
-            try {
-                return Dns.SYSTEM.lookup(hostname);
-            } catch (UnknownHostException ignored) {}
+        throw new UnknownHostException(hostname);
+    }
+
+    private Entry resolveSystem(String hostname) throws UnknownHostException {
+        List<InetAddress> result = Dns.SYSTEM.lookup(hostname);
+
+        if (result.isEmpty()) {
+            throw new UnknownHostException(hostname);
         }
 
+        // The system resolver already sorts addresses by preference
+        boolean inet6 = result.get(0) instanceof Inet6Address;
+        // Short TTL, because real TTL is unknown and Android has its own cache
+        return new Entry(interleave(result, inet6), TTL_SYSTEM);
+    }
+
+    private Lookup query(String hostname, int type) throws UnknownHostException {
         Lookup req;
         try {
-            req = new Lookup(hostname, Type.A);
+            req = new Lookup(hostname, type);
         } catch (TextParseException|ExceptionInInitializerError ex) {
             Logger.log(Logger.LEVEL.DEBUG, ex);
             throw new UnknownHostException(hostname);
         }
 
         req.setResolver(dns);
+        req.setCache(null); // dnsjava's default cache is shared between networks
+        req.run();
+
+        return req;
+    }
+
+    /**
+     * Query A and AAAA records directly from DNS servers of the network.
+     */
+    private Entry resolveDirect(final String hostname) throws UnknownHostException {
+        Future<Lookup> aaaa = query_executor.submit(() -> query(hostname, Type.AAAA));
+        Lookup a = query(hostname, Type.A);
+        Lookup a6 = null;
+
+        try {
+            // Don't wait for AAAA for too long if A is already received (RFC 8305)
+            if (a.getResult() == Lookup.SUCCESSFUL) {
+                a6 = aaaa.get(RESOLUTION_DELAY, TimeUnit.MILLISECONDS);
+            } else {
+                a6 = aaaa.get();
+            }
+        } catch (TimeoutException | ExecutionException ex) {
+            aaaa.cancel(true);
+        } catch (InterruptedException ex) {
+            aaaa.cancel(true);
+            throw new UnknownHostException(hostname);
+        }
+
+        if (a.getResult() == Lookup.HOST_NOT_FOUND) {
+            return new Entry(null, TTL_NEGATIVE);
+        }
 
-        Record[] res = req.run();
         List<InetAddress> result = new LinkedList<>();
+        long ttl = TTL_MAX;
+
+        for (Lookup req : new Lookup[] {a, a6}) {
+            if (req == null || req.getAnswers() == null) continue;
+
+            for (Record record : req.getAnswers()) {
+                if (record instanceof ARecord) {
+                    result.add(((ARecord) record).getAddress());
+                } else if (record instanceof AAAARecord) {
+                    result.add(((AAAARecord) record).getAddress());
+                } else {
+                    continue;
+                }
+
+                ttl = Math.min(ttl, record.getTTL());
+            }
+        }
+
+        if (result.isEmpty()) {
+            if (a.getResult() == Lookup.TYPE_NOT_FOUND &&
+                    (a6 == null || a6.getResult() == Lookup.TYPE_NOT_FOUND)) {
+                return new Entry(null, TTL_NEGATIVE);
+            }
 
-        if (res == null || res.length == 0) {
             throw new UnknownHostException(hostname);
         }
 
-        for (Record record : res) {
-            if (record instanceof ARecord) {
-                result.add(((ARecord) record).getAddress());
+        // IPv6 is often broken in captive networks, so IPv4 goes first
+        return new Entry(interleave(result, false), ttl);
+    }
+
+    /**
+     * Sort addresses by alternating IPv6 and IPv4 families (RFC 8305). OkHttp
+     * tries them one by one, so a broken family only costs one attempt.
+     *
+     * @param inet6 Start with IPv6 address.
+     */
+    private static List<InetAddress> interleave(List<InetAddress> addresses, boolean inet6) {
+        List<InetAddress> v4 = new LinkedList<>();
+        List<InetAddress> v6 = new LinkedList<>();
+
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address) {
+                v6.add(address);
+            } else {
+                v4.add(address);
             }
         }
 
+        List<InetAddress> result = new LinkedList<>();
+        Iterator<InetAddress> first = (inet6 ? v6 : v4).iterator();
+        Iterator<InetAddress> second = (inet6 ? v4 : v6).iterator();
+
+        while (first.hasNext() || second.hasNext()) {
+            if (first.hasNext()) result.add(first.next());
+            if (second.hasNext()) result.add(second.next());
+        }
+
         return result;
     }
 }
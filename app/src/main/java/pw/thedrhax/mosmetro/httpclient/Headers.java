@@ -35,6 +35,7 @@ public class Headers extends TreeMap<String,List<String>> {
     public static final String CSRF = "X-CSRF-Token";
     public static final String LOCATION = "Location";
     public static final String CONTENT_TYPE = "Content-Type";
+    public static final String CACHE_CONTROL = "Cache-Control";
     public static final String UPGRADE_INSECURE_REQUESTS = "Upgrade-Insecure-Requests";
 
     public Headers() {
@@ -37,7 +37,10 @@ public class HttpRequest {
         this.client = client;
         this.method = method;
         this.url = Uri.parse(url);
-        this.headers.putAll(client.headers);
+
+        synchronized (client.headers) {
+            this.headers.putAll(client.headers);
+        }
     }
 
     public HttpRequest setMethod(Client.METHOD method) {
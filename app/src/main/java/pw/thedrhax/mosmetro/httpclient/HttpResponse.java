@@ -37,7 +37,11 @@ import org.jsoup.nodes.Element;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -45,6 +49,7 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import okhttp3.MediaType;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 import pw.thedrhax.util.Logger;
@@ -61,6 +66,8 @@ public class HttpResponse {
         add("application/xhtml+xml");
     }};
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public final Headers headers = new Headers();
 
     private HttpRequest request;
@@ -68,8 +75,18 @@ public class HttpResponse {
     private int code;
     private String reason;
 
-    private String body;
-    private Document document;
+    /**
+     * Body of parsed types is decoded and parsed only when needed
+     */
+    private byte[] raw = null;
+    private int bom = 0; // length of the byte order mark in raw
+    private Charset charset = null;
+    private String body = null;
+    private Document document = null;
+    private List<Map<String,String>> meta = null;
+
+    private String redirect = null;
+    private ParseException redirect_ex = null;
 
     public static HttpResponse EMPTY(Client client) {
         return new HttpResponse(new HttpRequest(client, Client.METHOD.GET, ""), "");
@@ -88,11 +105,11 @@ public class HttpResponse {
         this.headers.putAll(response.headers().toMultimap());
 
         if (PARSED_TYPES.contains(this.headers.getMimeType())) {
-            this.body = body.string();
-
-            if (!this.body.isEmpty() && this.headers.getMimeType().contains("text/html")) {
-                document = Jsoup.parse(this.body, getUrl());
-            }
+            // Read now to release the connection, but decode only on demand
+            MediaType type = body.contentType();
+            this.charset = type != null ? type.charset(UTF_8) : UTF_8;
+            this.raw = body.bytes();
+            detectBom();
         } else {
             this.stream = body.byteStream();
         }
@@ -109,10 +126,26 @@ public class HttpResponse {
         }
 
         this.body = body;
+    }
+
+    public HttpResponse(@NonNull HttpRequest request, @NonNull InputStream stream, int code,
+                        String reason, @Nullable Headers headers) {
+        this.request = request;
+        this.code = code;
+        this.reason = reason;
 
-        if (!body.isEmpty() && this.headers.getMimeType().contains("text/html")) {
-            document = Jsoup.parse(body, getUrl());
+        if (headers != null) {
+            this.headers.putAll(headers);
         }
+
+        this.stream = stream;
+    }
+
+    public HttpResponse(HttpRequest request, byte[] content, String contentType) {
+        this(request, new ByteArrayInputStream(content), 200, "OK", new Headers() {{
+            setHeader(Headers.CONTENT_TYPE, contentType);
+            setHeader(Headers.ACAO, "*");
+        }});
     }
 
     public HttpResponse(HttpRequest request, String content, String contentType) {
@@ -126,8 +159,52 @@ public class HttpResponse {
         this(request, body, "text/html; charset=utf-8");
     }
 
+    /**
+     * Byte order mark takes precedence over the charset from Content-Type
+     * (WHATWG Encoding Standard, "decode" algorithm).
+     */
+    private void detectBom() {
+        if (startsWith(raw, 0x00, 0x00, 0xFE, 0xFF)) {
+            setBom("UTF-32BE", 4);
+        } else if (startsWith(raw, 0xFF, 0xFE, 0x00, 0x00)) {
+            setBom("UTF-32LE", 4);
+        } else if (startsWith(raw, 0xEF, 0xBB, 0xBF)) {
+            setBom("UTF-8", 3);
+        } else if (startsWith(raw, 0xFE, 0xFF)) {
+            setBom("UTF-16BE", 2);
+        } else if (startsWith(raw, 0xFF, 0xFE)) {
+            setBom("UTF-16LE", 2);
+        }
+    }
+
+    private void setBom(String name, int length) {
+        if (Charset.isSupported(name)) {
+            charset = Charset.forName(name);
+            bom = length;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, int... prefix) {
+        if (data.length < prefix.length) return false;
+
+        for (int i = 0; i < prefix.length; i++) {
+            if ((data[i] & 0xFF) != prefix[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Responses may be shared between threads (see Gen204), so all methods
+     * that lazily decode or parse the body are synchronized.
+     */
     @NonNull
-    public String getPage() {
+    public synchronized String getPage() {
+        if (body == null && raw != null) {
+            // raw is kept for getInputStream(head), pages are usually logged before that
+            body = new String(raw, bom, raw.length - bom, charset);
+        }
+
         return body != null ? body : "";
     }
 
@@ -144,16 +221,27 @@ public class HttpResponse {
         return reason;
     }
 
-    public boolean isHtml() {
-        return document != null;
+    public synchronized boolean isHtml() {
+        if (document != null) return true;
+
+        boolean empty = raw != null ? raw.length == 0 : body == null || body.isEmpty();
+        return !empty && headers.getMimeType().contains("text/html");
     }
 
-    public Document getPageContent() {
+    /**
+     * Parse the page using Jsoup. Document is built only once, so changes
+     * made to it will be visible for all users of this response.
+     */
+    public synchronized Document getPageContent() {
+        if (document == null && isHtml()) {
+            document = Jsoup.parse(getPage(), getUrl());
+        }
+
         return document != null ? document : Jsoup.parse("<html></html>");
     }
 
     @Nullable
-    public InputStream getInputStream() {
+    public synchronized InputStream getInputStream() {
         if (stream != null) {
             return stream;
         }
@@ -162,6 +250,10 @@ public class HttpResponse {
             return new ByteArrayInputStream(document.toString().getBytes());
         }
 
+        if (raw != null) {
+            return new ByteArrayInputStream(raw);
+        }
+
         if (body != null) {
             return new ByteArrayInputStream(body.getBytes());
         }
@@ -169,6 +261,35 @@ public class HttpResponse {
         return null;
     }
 
+    /**
+     * Get the page with an HTML fragment inserted at the beginning of head.
+     *
+     * If the page wasn't parsed yet, the fragment is spliced into the original
+     * bytes without decoding or copying them. Otherwise, the Document is
+     * modified and serialized.
+     */
+    @Nullable
+    public synchronized InputStream getInputStream(@NonNull String head) {
+        if (!isHtml()) {
+            return getInputStream();
+        }
+
+        if (document == null && raw != null && MetaScanner.isSupported(charset)) {
+            int offset = MetaScanner.findHead(raw);
+
+            if (offset != -1) {
+                return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                        new ByteArrayInputStream(raw, 0, offset),
+                        new ByteArrayInputStream(head.getBytes(charset)),
+                        new ByteArrayInputStream(raw, offset, raw.length - offset)
+                )));
+            }
+        }
+
+        getPageContent().head().prepend(head);
+        return getInputStream();
+    }
+
     public boolean isStream() {
         return stream != null;
     }
@@ -177,18 +298,31 @@ public class HttpResponse {
         return request;
     }
 
-    public String parseMetaContent (String name) throws ParseException {
+    public synchronized String parseMetaContent (String name) throws ParseException {
         String value = null;
 
-        if (document == null) {
+        if (!isHtml()) {
             throw new ParseException("Document is null!", 0);
         }
 
-        for (Element element : document.getElementsByTag("meta")) {
-            if (name.equalsIgnoreCase(element.attr("name")) ||
-                    name.equalsIgnoreCase(element.attr("http-equiv"))) {
-                value = element.attr("content");
+        if (document != null) { // may be modified, don't use cached results
+            value = findMeta(name, parseMeta(document));
+        } else {
+            if (meta == null) {
+                try {
+                    if (raw != null && MetaScanner.isSupported(charset)) {
+                        meta = MetaScanner.scan(new ByteArrayInputStream(raw), charset);
+                    } else {
+                        meta = MetaScanner.scan(
+                                new ByteArrayInputStream(getPage().getBytes(UTF_8)), UTF_8
+                        );
+                    }
+                } catch (IOException ex) { // not possible with in-memory streams
+                    throw new ParseException(ex.toString(), 0);
+                }
             }
+
+            value = findMeta(name, meta);
         }
 
         if (value == null || value.isEmpty()) {
@@ -198,6 +332,34 @@ public class HttpResponse {
         return value;
     }
 
+    private static List<Map<String,String>> parseMeta(Document document) {
+        List<Map<String,String>> result = new LinkedList<>();
+
+        for (Element element : document.getElementsByTag("meta")) {
+            Map<String,String> attrs = new LinkedHashMap<>();
+            attrs.put("name", element.attr("name"));
+            attrs.put("http-equiv", element.attr("http-equiv"));
+            attrs.put("content", element.attr("content"));
+            result.add(attrs);
+        }
+
+        return result;
+    }
+
+    @Nullable
+    private static String findMeta(String name, List<Map<String,String>> meta) {
+        String value = null;
+
+        for (Map<String,String> attrs : meta) {
+            if (name.equalsIgnoreCase(attrs.get("name")) ||
+                    name.equalsIgnoreCase(attrs.get("http-equiv"))) {
+                value = attrs.get("content");
+            }
+        }
+
+        return value;
+    }
+
     private final Pattern META_REFRESH = Pattern.compile("^[0-9]+[;,] ?(URL=|url=)?['\"]?(.*?)['\"]?$");
 
     @NonNull
@@ -228,13 +390,28 @@ public class HttpResponse {
         return absolutePathToUrl(getUrl(), link);
     }
 
+    /**
+     * Get meta or 3xx redirect. Result is parsed only once for each response.
+     */
     @NonNull
-    public String parseAnyRedirect() throws ParseException {
-        try {
-            return parseMetaRedirect();
-        } catch (ParseException ex1) {
-            return get300Redirect();
+    public synchronized String parseAnyRedirect() throws ParseException {
+        if (redirect == null && redirect_ex == null) {
+            try {
+                try {
+                    redirect = parseMetaRedirect();
+                } catch (ParseException ex1) {
+                    redirect = get300Redirect();
+                }
+            } catch (ParseException ex) {
+                redirect_ex = ex;
+            }
         }
+
+        if (redirect_ex != null) {
+            throw redirect_ex;
+        }
+
+        return redirect;
     }
 
     @NonNull
@@ -328,9 +505,9 @@ public class HttpResponse {
         return builder.toString();
     }
 
-    public String toBodyString() {
-        if (document != null) {
-            String html = document.outerHtml();
+    public synchronized String toBodyString() {
+        if (isHtml()) {
+            String html = document != null ? document.outerHtml() : getPage();
             if (html.length() <= 2000) {
                 return html;
             } else {
@@ -24,6 +24,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.ViewGroup;
 import android.webkit.ConsoleMessage;
@@ -43,21 +44,20 @@ import androidx.annotation.Nullable;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
 import pw.thedrhax.mosmetro.authenticator.InterceptorTask;
+import pw.thedrhax.util.AssetCache;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.Randomizer;
-import pw.thedrhax.util.Util;
 
 /**
  * Implementation of WebViewClient that ignores redirects in onPageFinished()
@@ -67,18 +67,21 @@ public class InterceptedWebViewClient extends WebViewClient {
     private final Listener<String> currentUrl = new Listener<String>("") {
         @Override
         public void onChange(String new_value) {
-            Logger.log(InterceptedWebViewClient.this, "Current URL | " + new_value);
+            Logger.log(InterceptedWebViewClient.this, "Current URL | %s", new_value);
         }
     };
 
     private final String key;
-    private final String interceptorScript;
+    private final byte[] interceptorScript;
     private final List<InterceptorTask> interceptors = new LinkedList<>();
 
     private Context context;
     private Randomizer random;
     private WebView webview;
     private Client client = null;
+    private final boolean pref_concurrent;
+
+    private final Object referer_lock = new Object();
     private String next_referer;
     private String referer;
 
@@ -86,14 +89,16 @@ public class InterceptedWebViewClient extends WebViewClient {
         this.context = context;
         this.random = new Randomizer(context);
         this.webview = webview;
+        this.pref_concurrent = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean("pref_webview_concurrent", false);
 
         key = random.string(25).toLowerCase();
 
         try {
-            interceptorScript =
-                    Util.readAsset(context, "xhook.min.js") +
-                    Util.readAsset(context, "webview-proxy.js")
-                            .replaceAll("INTERCEPT_KEY", key);
+            interceptorScript = AssetCache.concat(
+                    AssetCache.get(context, "xhook.min.js"),
+                    AssetCache.get(context, "webview-proxy.js", "INTERCEPT_KEY", key)
+            );
         } catch (IOException ex) {
             throw new RuntimeException("Unable to read assets");
         }
@@ -110,6 +115,19 @@ public class InterceptedWebViewClient extends WebViewClient {
             }
         });
 
+        final StaticCache cache = new StaticCache(context);
+        interceptors.add(new InterceptorTask(".*") {
+            @Nullable @Override
+            public HttpResponse request(Client client, HttpRequest request) throws IOException {
+                return cache.get(request);
+            }
+
+            @NonNull @Override
+            public HttpResponse response(Client client, HttpRequest request, HttpResponse response) throws IOException {
+                return cache.put(request, response);
+            }
+        });
+
         setClient(client);
     }
 
@@ -187,20 +205,20 @@ public class InterceptedWebViewClient extends WebViewClient {
             Logger.log(this, response.toString());
         }
 
+        // Only HTML pages are rewritten, everything else is passed as is
+        InputStream stream;
         if (response.isHtml()) {
-            Document doc = response.getPageContent();
-
-            doc.head().insertChildren(0, new LinkedList<Element>() {{
-                Element xhook = doc.createElement("script");
-                xhook.attr("src", "https://" + key + "/webview-proxy.js");
-                add(xhook);
-            }});
+            stream = response.getInputStream(
+                    "<script src=\"https://" + key + "/webview-proxy.js\"></script>"
+            );
+        } else {
+            stream = response.getInputStream();
         }
 
         WebResourceResponse result = new WebResourceResponse(
                 response.headers.getMimeType(),
                 response.headers.getEncoding(),
-                response.getInputStream()
+                stream
         );
 
         if (Build.VERSION.SDK_INT >= 21) {
@@ -225,7 +243,7 @@ public class InterceptedWebViewClient extends WebViewClient {
         return result;
     }
 
-    private HttpResponse getToPost(String url) throws IOException {
+    private HttpResponse getToPost(String url, @Nullable String referer) throws IOException {
         if (url.matches("https?://[^/]+/" + key + "\\?.*")) {
             Uri uri = Uri.parse(url);
             url = uri.getQueryParameter("url");
@@ -255,35 +273,53 @@ public class InterceptedWebViewClient extends WebViewClient {
 
             String body = uri.getQueryParameter("body");
 
-            Logger.log(this, "POST " + url);
+            Logger.log(this, "POST %s", url);
 
             HttpRequest request = client.post(url, body, type);
+            if (referer != null) request.headers.setHeader(Headers.REFERER, referer);
             request.headers.putAll(headers);
             return request.execute();
         } else if (url.matches("^https?://" + key + "/webview-proxy\\.js$")) {
             return new HttpResponse(client.get(url), interceptorScript, "text/javascript");
         } else {
-            Logger.log(this, "GET " + url);
-            return client.get(url).execute();
+            Logger.log(this, "GET %s", url);
+            HttpRequest request = client.get(url);
+            if (referer != null) request.headers.setHeader(Headers.REFERER, referer);
+            return request.execute();
         }
     }
 
+    /**
+     * Called by WebView on its IO threads. Requests are handled one by one
+     * unless pref_webview_concurrent is enabled.
+     */
     @Override
-    public synchronized WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+    public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+        if (pref_concurrent) {
+            return intercept(view, url);
+        }
+
+        synchronized (this) {
+            return intercept(view, url);
+        }
+    }
+
+    private WebResourceResponse intercept(WebView view, String url) {
         WebResourceResponse result = new WebResourceResponse(
                 "text/html",
                 "utf-8",
                 new ByteArrayInputStream("".getBytes())
         );
 
-        if (referer != null) {
-            client.headers.setHeader(Headers.REFERER, referer);
-        }
-
         if ("about:blank".equals(url)) return null;
 
+        String referer;
+        synchronized (referer_lock) {
+            referer = this.referer;
+        }
+
         try {
-            result = webresponse(getToPost(url));
+            result = webresponse(getToPost(url, referer));
         } catch (UnknownHostException ex) {
             onReceivedError(view, ERROR_HOST_LOOKUP, ex.toString(), url);
             return result;
@@ -291,17 +327,19 @@ public class InterceptedWebViewClient extends WebViewClient {
             Logger.log(this, ex.toString());
         }
 
-        // Apply scheduled referer update
-        if (next_referer != null && next_referer.equals(url)) {
-            Logger.log(this, "Referer | Scheduled: " + next_referer);
-            referer = next_referer;
-            next_referer = null;
-        }
+        synchronized (referer_lock) {
+            // Apply scheduled referer update
+            if (next_referer != null && next_referer.equals(url)) {
+                Logger.log(this, "Referer | Scheduled: " + next_referer);
+                this.referer = next_referer;
+                next_referer = null;
+            }
 
-        // First request sets referer for others
-        if (referer == null) {
-            Logger.log(this, "Referer | First: " + url);
-            referer = url;
+            // First request sets referer for others
+            if (this.referer == null) {
+                Logger.log(this, "Referer | First: " + url);
+                this.referer = url;
+            }
         }
 
         return result;
@@ -324,21 +362,23 @@ public class InterceptedWebViewClient extends WebViewClient {
 
     @Override
     public boolean shouldOverrideUrlLoading(WebView view, String url) {
-        next_referer = url; // Schedule referer update
+        synchronized (referer_lock) {
+            next_referer = url; // Schedule referer update
+        }
         return false;
     }
 
     @Override
     public void onPageStarted(WebView view, String url, Bitmap favicon) {
         super.onPageStarted(view, url, favicon);
-        Logger.log(this, "onPageStarted(" + url + ")");
+        Logger.log(this, "onPageStarted(%s)", url);
         currentUrl.set(url);
     }
 
     @Override
     public void onPageFinished(WebView view, String url) {
         super.onPageFinished(view, url);
-        Logger.log(this, "onPageFinished(" + url + ")");
+        Logger.log(this, "onPageFinished(%s)", url);
     }
 
     @Override
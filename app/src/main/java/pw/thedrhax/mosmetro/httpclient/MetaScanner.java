@@ -0,0 +1,254 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.httpclient;
+
+import androidx.annotation.NonNull;
+
+import org.jsoup.parser.Parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming extractor of meta tags from HTML pages. Used by HttpResponse
+ * to avoid building the full Document for simple lookups like CSRF tokens
+ * and meta redirects.
+ *
+ * The page is read byte by byte. Meta tags are collected from the whole page,
+ * because some portals put them into the body, and Jsoup finds them there too.
+ * Only the meta tags themselves are decoded to Strings, so this works with
+ * any ASCII-compatible encoding. Comments and contents of script, style, title
+ * and textarea tags are skipped, the same way as Jsoup does.
+ *
+ * @see HttpResponse
+ */
+final class MetaScanner {
+    private static final Pattern ATTRIBUTE = Pattern.compile(
+            "([^\\s=/>\"']+)(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+)))?"
+    );
+
+    private final PushbackInputStream in;
+    private final Charset charset;
+    private int position = 0;
+    private int head_end = -1;
+
+    private MetaScanner(InputStream in, Charset charset) {
+        this.in = new PushbackInputStream(in, 1);
+        this.charset = charset;
+    }
+
+    /**
+     * Find all meta tags of the page.
+     *
+     * @param in        Page contents. Stream is not closed by this method.
+     * @param charset   Page encoding. Must be ASCII-compatible.
+     * @return List of attribute maps. Attribute names are in lower case.
+     */
+    @NonNull
+    static List<Map<String,String>> scan(@NonNull InputStream in, @NonNull Charset charset)
+            throws IOException {
+        return new MetaScanner(in, charset).scan();
+    }
+
+    /**
+     * @return True if tags of the page can be found by comparing bytes to ASCII.
+     */
+    static boolean isSupported(@NonNull Charset charset) {
+        String name = charset.name().toUpperCase(Locale.ENGLISH);
+        return !name.startsWith("UTF-16") && !name.startsWith("UTF-32");
+    }
+
+    /**
+     * Find the position right after the opening head tag.
+     *
+     * @param raw Page contents in ASCII-compatible encoding.
+     * @return Offset in bytes or -1 if head tag is not found.
+     */
+    static int findHead(@NonNull byte[] raw) {
+        MetaScanner scanner = new MetaScanner(new ByteArrayInputStream(raw), null);
+
+        try {
+            scanner.scan();
+        } catch (IOException ignored) {}
+
+        return scanner.head_end;
+    }
+
+    private int read() throws IOException {
+        int c = in.read();
+        if (c != -1) position++;
+        return c;
+    }
+
+    private void unread(int c) throws IOException {
+        in.unread(c);
+        position--;
+    }
+
+    private List<Map<String,String>> scan() throws IOException {
+        List<Map<String,String>> result = new LinkedList<>();
+        int c;
+
+        while ((c = read()) != -1) {
+            if (c != '<') continue;
+
+            c = read();
+
+            if (c == '!') {
+                if (read() == '-' && read() == '-') {
+                    skipUntil("-->");
+                } else {
+                    skipTag();
+                }
+            } else if (c == '/') {
+                if ("head".equals(readName()) && charset == null) break;
+                skipTag();
+            } else if (isLetter(c)) {
+                unread(c);
+                String name = readName();
+
+                if ("body".equals(name) && charset == null) break; // no head tag
+
+                if ("head".equals(name) && head_end == -1) {
+                    skipTag();
+                    head_end = position;
+                    if (charset == null) break; // looking only for head
+                } else if ("meta".equals(name) && charset != null) {
+                    result.add(attributes(new String(readTag(true), charset)));
+                } else if ("script".equals(name) || "style".equals(name) ||
+                        "title".equals(name) || "textarea".equals(name)) {
+                    skipTag();
+                    skipUntil("</" + name);
+                } else {
+                    skipTag();
+                }
+            } else if (c == '<') {
+                unread(c);
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Read tag name in lower case. Character after the name is not consumed.
+     */
+    private String readName() throws IOException {
+        StringBuilder name = new StringBuilder();
+        int c;
+
+        while ((c = read()) != -1) {
+            if (!isLetter(c) && !(c >= '0' && c <= '9')) {
+                unread(c);
+                break;
+            }
+
+            name.append(Character.toLowerCase((char) c));
+        }
+
+        return name.toString();
+    }
+
+    /**
+     * Read the rest of the tag (attributes) until '>' outside of quotes.
+     * @param keep Return the bytes read. If false, null is returned.
+     */
+    private byte[] readTag(boolean keep) throws IOException {
+        ByteArrayOutputStream tag = keep ? new ByteArrayOutputStream() : null;
+        int quote = 0;
+        int c;
+
+        while ((c = read()) != -1) {
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                break;
+            }
+
+            if (tag != null) tag.write(c);
+        }
+
+        return tag != null ? tag.toByteArray() : null;
+    }
+
+    private void skipTag() throws IOException {
+        readTag(false);
+    }
+
+    /**
+     * Skip everything until the end of the first occurrence of ASCII string
+     * (case insensitive).
+     */
+    private void skipUntil(String until) throws IOException {
+        char[] window = new char[until.length()];
+        int c;
+
+        while ((c = read()) != -1) {
+            System.arraycopy(window, 1, window, 0, window.length - 1);
+            window[window.length - 1] = Character.toLowerCase((char) c);
+
+            if (window[window.length - 1] != until.charAt(until.length() - 1)) continue;
+
+            if (until.equals(new String(window))) {
+                return;
+            }
+        }
+    }
+
+    private static Map<String,String> attributes(String tag) {
+        Map<String,String> result = new HashMap<>();
+        Matcher matcher = ATTRIBUTE.matcher(tag);
+
+        while (matcher.find()) {
+            String name = matcher.group(1).toLowerCase(Locale.ENGLISH);
+            String value = "";
+
+            for (int i = 2; i <= 4; i++) {
+                if (matcher.group(i) != null) {
+                    value = Parser.unescapeEntities(matcher.group(i), true);
+                    break;
+                }
+            }
+
+            // Duplicate attributes are ignored by browsers
+            if (!result.containsKey(name)) {
+                result.put(name, value);
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,365 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.httpclient;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pw.thedrhax.util.Logger;
+
+/**
+ * Disk cache for immutable static resources of captive portal pages (scripts,
+ * styles, fonts and images). Only resources with content-hashed names or long
+ * max-age are stored, and only until max-age expires. HTML pages and API calls
+ * are never cached.
+ *
+ * WebView cache is cleared before each connection, so this cache is used
+ * instead to avoid downloading the same files again.
+ *
+ * @see InterceptedWebViewClient
+ */
+public class StaticCache {
+    private static final long MAX_SIZE = 10 * 1024 * 1024; // bytes
+    private static final long MIN_MAX_AGE = 24 * 60 * 60; // seconds
+    private static final long HASHED_MAX_AGE = 30 * 24 * 60 * 60; // seconds, if not specified
+    private static final long IMMUTABLE_MAX_AGE = 365 * 24 * 60 * 60; // seconds
+
+    private static final Pattern STATIC_TYPES = Pattern.compile(
+            "^(text/css|(application|text)/(x-)?javascript|font/.*|application/(x-)?font-.*|image/.*)$"
+    );
+
+    private static final Pattern HASHED_NAME = Pattern.compile(
+            ".*[/._-][0-9a-fA-F]{8,}([._-][^/]*)?\\.(js|css|woff2?|ttf|eot|svg|png|jpe?g|gif|webp)(\\?.*)?$"
+    );
+
+    private static final Pattern MAX_AGE = Pattern.compile("max-age=([0-9]+)");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static boolean cleaned = false;
+
+    private final File dir;
+
+    public StaticCache(Context context) {
+        dir = new File(context.getCacheDir(), "static");
+        clean(dir);
+    }
+
+    /**
+     * Remove temporary files left by the previous process (for example, if it
+     * was killed while downloading a resource).
+     */
+    private static synchronized void clean(File dir) {
+        if (cleaned) return;
+        cleaned = true;
+
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return Cached response or null if the resource is not in cache.
+     */
+    @Nullable
+    public synchronized HttpResponse get(@NonNull HttpRequest request) {
+        if (request.getMethod() != Client.METHOD.GET) return null;
+
+        File file = new File(dir, key(request.getUrl()));
+        if (!file.exists()) return null;
+
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            long expires = Long.parseLong(readLine(is));
+            String type = readLine(is);
+
+            if (System.currentTimeMillis() > expires) {
+                Logger.log(this, "Expired: %s", request.getUrl());
+                is.close();
+                file.delete();
+                return null;
+            }
+
+            Headers headers = new Headers();
+            headers.setHeader(Headers.CONTENT_TYPE, type);
+            headers.setHeader(Headers.ACAO, "*");
+
+            file.setLastModified(System.currentTimeMillis()); // LRU
+            Logger.log(this, "Hit: %s", request.getUrl());
+
+            return new HttpResponse(request, is, 200, "OK", headers);
+        } catch (IOException | NumberFormatException ex) { // old format or broken file
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) {}
+            }
+
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Store the resource while it is being read by the caller.
+     *
+     * @return Response to be used instead of the original one.
+     */
+    @NonNull
+    public HttpResponse put(@NonNull HttpRequest request, @NonNull HttpResponse response) {
+        long max_age = getMaxAge(request, response);
+        if (max_age <= 0) return response;
+
+        File file = new File(dir, key(request.getUrl()));
+        if (file.exists()) return response; // response is already from cache
+        File temp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+
+        try {
+            if (!dir.exists() && !dir.mkdirs()) return response;
+
+            OutputStream os = new FileOutputStream(temp);
+            long expires = System.currentTimeMillis() + max_age * 1000;
+            os.write((expires + "\n").getBytes("UTF-8"));
+            os.write((response.headers.getContentType() + "\n").getBytes("UTF-8"));
+
+            return new HttpResponse(
+                    request, new TeeInputStream(response.getInputStream(), os, temp, file),
+                    response.getResponseCode(), response.getReason(), response.headers
+            );
+        } catch (IOException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+            temp.delete();
+            return response;
+        }
+    }
+
+    /**
+     * @return Number of seconds the resource can be stored for or 0 if it
+     *         shouldn't be cached at all.
+     */
+    private static long getMaxAge(HttpRequest request, HttpResponse response) {
+        if (request.getMethod() != Client.METHOD.GET) return 0;
+        if (response.getResponseCode() != 200) return 0;
+        if (!response.isStream()) return 0;
+
+        String type = response.headers.getMimeType().toLowerCase(Locale.ENGLISH);
+        if (!STATIC_TYPES.matcher(type).matches()) return 0;
+
+        boolean hashed = HASHED_NAME.matcher(request.getUrl()).matches();
+        String cache_control = response.headers.getFirst(Headers.CACHE_CONTROL);
+
+        if (cache_control != null) {
+            cache_control = cache_control.toLowerCase(Locale.ENGLISH);
+
+            if (cache_control.contains("no-store") || cache_control.contains("private")) {
+                return 0;
+            }
+
+            if (cache_control.contains("immutable")) {
+                return IMMUTABLE_MAX_AGE;
+            }
+
+            Matcher matcher = MAX_AGE.matcher(cache_control);
+            if (matcher.find()) {
+                long max_age;
+                try {
+                    max_age = Long.parseLong(matcher.group(1));
+                } catch (NumberFormatException ex) {
+                    return 0;
+                }
+
+                return max_age >= MIN_MAX_AGE || hashed ? max_age : 0;
+            }
+        }
+
+        return hashed ? HASHED_MAX_AGE : 0;
+    }
+
+    private static String key(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            char[] result = new char[hash.length * 2];
+
+            for (int i = 0; i < hash.length; i++) {
+                result[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                result[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+
+            return new String(result);
+        } catch (NoSuchAlgorithmException | IOException ex) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+
+        while ((c = is.read()) != '\n') {
+            if (c == -1) throw new IOException("Unexpected end of file");
+            line.write(c);
+        }
+
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Remove least recently used files until the cache fits MAX_SIZE.
+     */
+    private synchronized void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+
+        long size = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) continue;
+
+            size += file.length();
+            if (size > MAX_SIZE) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Copies everything read from the stream to the file. The file is added
+     * to cache only if the stream was read to the end.
+     */
+    private class TeeInputStream extends FilterInputStream {
+        private final OutputStream os;
+        private final File temp;
+        private final File file;
+        private boolean failed = false;
+        private boolean closed = false;
+
+        TeeInputStream(InputStream in, OutputStream os, File temp, File file) {
+            super(in);
+            this.os = os;
+            this.temp = temp;
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+
+            if (c == -1) {
+                commit();
+            } else {
+                write(new byte[] {(byte) c}, 0, 1);
+            }
+
+            return c;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+
+            if (count == -1) {
+                commit();
+            } else {
+                write(b, off, count);
+            }
+
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            failed = true; // skipped data can't be cached
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (failed) return;
+
+            try {
+                os.write(b, off, len);
+            } catch (IOException ex) {
+                failed = true;
+            }
+        }
+
+        private void commit() {
+            if (closed) return;
+            closed = true;
+
+            try {
+                os.close();
+            } catch (IOException ex) {
+                failed = true;
+            }
+
+            if (!failed && temp.renameTo(file)) {
+                trim();
+            } else {
+                temp.delete();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                failed = true; // not read to the end
+                commit();
+            }
+
+            super.close();
+        }
+    }
+}
@@ -26,6 +26,8 @@ import android.webkit.CookieSyncManager;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
@@ -36,7 +38,10 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
@@ -50,7 +55,7 @@ import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Cookie;
 import okhttp3.CookieJar;
-import okhttp3.Dns;
+import okhttp3.EventListener;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
@@ -66,20 +71,52 @@ import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.WifiUtils;
 
 public class OkHttp extends Client {
+    /**
+     * Base client shared by all instances. Connection pool, DNS resolver and
+     * TLS sessions are only valid inside one network, so it is recreated after
+     * each network change (see flush()).
+     */
+    private static OkHttpClient base = null;
+
+    /**
+     * TLS contexts keep their own session cache, so a single one is shared
+     * between all clients that don't verify certificates. Connections are
+     * only reused if these objects are the same too.
+     */
+    private static SSLSocketFactory trust_all_factory = null;
+    private static X509TrustManager trust_all_manager = null;
+    private static HostnameVerifier trust_all_verifier = null;
+
+    private static final AtomicInteger stat_connections = new AtomicInteger(0);
+    private static final AtomicInteger stat_handshakes = new AtomicInteger(0);
+    private static final AtomicInteger stat_requests = new AtomicInteger(0);
+
     private OkHttpClient client;
+    private OkHttpClient client_base = null;
     private WifiUtils wifi;
-    private Call last_call = null;
+    private final Set<Call> calls = Collections.newSetFromMap(new ConcurrentHashMap<Call, Boolean>());
+
+    private boolean trust_all = false;
+    private int timeout = 0;
 
     public OkHttp(Context context) {
         super(context);
         wifi = new WifiUtils(context);
+        client = derive();
+        configure();
+    }
+
+    private static synchronized OkHttpClient getBase(Context context) {
+        if (base != null) {
+            return base;
+        }
 
-        client = new OkHttpClient.Builder()
+        base = new OkHttpClient.Builder()
                 .dns(new DnsClient(context))
                 .followRedirects(false)
                 .followSslRedirects(false)
                 .protocols(Collections.singletonList(Protocol.HTTP_1_1))
-                .connectionPool(new ConnectionPool(0, 1, TimeUnit.SECONDS))
+                .connectionPool(new ConnectionPool(5, 1, TimeUnit.MINUTES))
                 .connectionSpecs(new LinkedList<ConnectionSpec>() {{
                     add(ConnectionSpec.CLEARTEXT);
                     add(new ConnectionSpec.Builder(ConnectionSpec.COMPATIBLE_TLS)
@@ -87,14 +124,53 @@ public class OkHttp extends Client {
                             .allEnabledCipherSuites()
                             .build());
                 }})
-                .cookieJar(new InterceptedCookieJar())
+                .eventListener(new EventListener() {
+                    @Override
+                    public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+                        stat_connections.incrementAndGet();
+                    }
+
+                    @Override
+                    public void secureConnectStart(Call call) {
+                        stat_handshakes.incrementAndGet();
+                    }
+
+                    @Override
+                    public void callStart(Call call) {
+                        stat_requests.incrementAndGet();
+                    }
+                })
                 .build();
 
-        configure();
+        return base;
     }
 
-    @Override
-    public Client trustAllCerts() {
+    /**
+     * Close all idle connections and recreate the base client on next request.
+     * Should be called on network change.
+     */
+    public static synchronized void flush() {
+        if (base != null) {
+            Logger.log(Logger.LEVEL.DEBUG, "OkHttp | Closing idle connections");
+            base.connectionPool().evictAll();
+        }
+
+        base = null;
+    }
+
+    /**
+     * @return Number of requests, new connections and TLS handshakes made by all
+     *         instances since the process was started.
+     */
+    public static int[] getStatistics() {
+        return new int[] {
+                stat_requests.get(), stat_connections.get(), stat_handshakes.get()
+        };
+    }
+
+    private static synchronized boolean initTrustAll() {
+        if (trust_all_factory != null) return true;
+
         X509TrustManager tm = new X509TrustManager() {
             @SuppressLint("TrustAllX509TrustManager")
             @Override
@@ -112,16 +188,16 @@ public class OkHttp extends Client {
             }
         };
 
-        SSLSocketFactory socketFactory;
         try {
             SSLContext sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, new TrustManager[]{tm}, new java.security.SecureRandom());
-            socketFactory = sslContext.getSocketFactory();
+            trust_all_factory = sslContext.getSocketFactory();
+            trust_all_manager = tm;
         } catch (NoSuchAlgorithmException | KeyManagementException ex) {
-            return this;
+            return false;
         }
 
-        HostnameVerifier hostnameVerifier = new HostnameVerifier() {
+        trust_all_verifier = new HostnameVerifier() {
             @SuppressLint("BadHostnameVerifier")
             @Override
             public boolean verify(String hostname, SSLSession session) {
@@ -129,11 +205,49 @@ public class OkHttp extends Client {
             }
         };
 
-        client = client.newBuilder()
-                .hostnameVerifier(hostnameVerifier)
-                .sslSocketFactory(socketFactory, tm)
-                .build();
+        return true;
+    }
+
+    /**
+     * Create OkHttpClient for this instance from the current base client.
+     */
+    private OkHttpClient derive() {
+        client_base = getBase(context);
 
+        OkHttpClient.Builder builder = client_base.newBuilder()
+                .cookieJar(new InterceptedCookieJar());
+
+        if (trust_all) {
+            builder.hostnameVerifier(trust_all_verifier)
+                   .sslSocketFactory(trust_all_factory, trust_all_manager);
+        }
+
+        if (timeout != 0) {
+            builder.connectTimeout(timeout, TimeUnit.MILLISECONDS)
+                   .readTimeout(timeout, TimeUnit.MILLISECONDS)
+                   .writeTimeout(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @return OkHttpClient derived from the base client of the current network.
+     */
+    private synchronized OkHttpClient getClient() {
+        if (getBase(context) != client_base) {
+            client = derive();
+        }
+
+        return client;
+    }
+
+    @Override
+    public synchronized Client trustAllCerts() {
+        if (!initTrustAll()) return this;
+
+        trust_all = true;
+        client = derive();
         return this;
     }
 
@@ -158,15 +272,11 @@ public class OkHttp extends Client {
     }
 
     @Override
-    public Client setTimeout(int ms) {
+    public synchronized Client setTimeout(int ms) {
         if (ms == 0) return this;
 
-        client = client.newBuilder()
-                .connectTimeout(ms, TimeUnit.MILLISECONDS)
-                .readTimeout(ms, TimeUnit.MILLISECONDS)
-                .writeTimeout(ms, TimeUnit.MILLISECONDS)
-                .build();
-
+        timeout = ms;
+        client = derive();
         return this;
     }
 
@@ -217,14 +327,20 @@ public class OkHttp extends Client {
             wifi.bindToWifi();
         }
 
-        last_call = client.newCall(builder.build());
-        return new HttpResponse(request, last_call.execute());
+        Call call = getClient().newCall(builder.build());
+        calls.add(call);
+
+        try {
+            return new HttpResponse(request, call.execute());
+        } finally {
+            calls.remove(call);
+        }
     }
 
     @Override
     public void stop() {
-        if (last_call != null) {
-            last_call.cancel();
+        for (Call call : calls) {
+            call.cancel();
         }
     }
 
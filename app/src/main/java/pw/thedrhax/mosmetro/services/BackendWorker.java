@@ -25,7 +25,9 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.work.Constraints;
 import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
 import androidx.work.PeriodicWorkRequest;
 import androidx.work.WorkManager;
 import androidx.work.Worker;
@@ -68,4 +70,23 @@ public class BackendWorker extends Worker {
             request
         );
     }
+
+    /**
+     * Run BackendRequest once as soon as network is available.
+     */
+    public static void runOnce(Context context) {
+        Constraints constraints = new Constraints();
+        constraints.setRequiredNetworkType(NetworkType.CONNECTED);
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(BackendWorker.class)
+                .setConstraints(constraints)
+                .addTag("BackendWorker")
+                .build();
+
+        WorkManager.getInstance(context).enqueueUniqueWork(
+            "BackendWorkerOnce",
+            ExistingWorkPolicy.KEEP,
+            request
+        );
+    }
 }
@@ -0,0 +1,246 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.preference.PreferenceManager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.Logger;
+import pw.thedrhax.util.Util;
+import pw.thedrhax.util.WifiUtils;
+
+/**
+ * Internet connection monitor used by ConnectionService after successful login.
+ *
+ * Instead of checking connection at fixed intervals, this class listens to the
+ * system network callbacks (API 21+) and performs the active check immediately
+ * if anything looks wrong: Wi-Fi network is lost, link properties are changed or
+ * system has revoked the VALIDATED capability. While connection is healthy, the
+ * interval between active checks is doubled after every successful check.
+ *
+ * @see ConnectionService
+ */
+class ConnectionMonitor {
+    /**
+     * Maximum interval between active checks (multiplier of the base interval)
+     */
+    private static final int MAX_BACKOFF = 8;
+
+    public interface Check {
+        /**
+         * @return True if internet connection is still available
+         */
+        boolean isConnected();
+    }
+
+    private final WifiUtils wifi;
+    private final Object lock = new Object();
+    private boolean alarm = false;
+
+    private final boolean pref_internet_check;
+    private final boolean pref_adaptive;
+    private final int pref_interval;
+
+    private ConnectivityManager.NetworkCallback callback = null;
+
+    private final Listener<Boolean> running = new Listener<Boolean>(true) {
+        @Override
+        public void onChange(Boolean new_value) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    };
+
+    ConnectionMonitor(Context context, Listener<Boolean> running) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        pref_internet_check = settings.getBoolean("pref_internet_check", true);
+        pref_adaptive = settings.getBoolean("pref_internet_check_adaptive", true);
+        pref_interval = Math.max(1, Util.getIntPreference(context, "pref_internet_check_interval", 10));
+
+        this.wifi = new WifiUtils(context);
+        this.running.subscribe(running);
+    }
+
+    /**
+     * Wake up the monitor and check connection as soon as possible
+     */
+    public void alarm(String reason) {
+        Logger.log(this, "Alarm | " + reason);
+
+        synchronized (lock) {
+            alarm = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for alarm, timeout or interruption.
+     *
+     * @return True if alarm was raised
+     */
+    private boolean await(long ms) {
+        long deadline = System.currentTimeMillis() + ms;
+
+        synchronized (lock) {
+            while (!alarm && running.get()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) break;
+
+                try {
+                    lock.wait(left);
+                } catch (InterruptedException ex) {
+                    return false;
+                }
+            }
+
+            boolean result = alarm;
+            alarm = false;
+            return result;
+        }
+    }
+
+    @RequiresApi(21)
+    private void register() {
+        callback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onLost(@NonNull Network network) {
+                alarm("Network lost");
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(@NonNull Network network, @NonNull LinkProperties props) {
+                String key = key(props);
+
+                // Ignore the initial delivery and DHCP renewals with the same parameters
+                if (last_props != null && !last_props.equals(key)) {
+                    alarm("Link properties changed");
+                }
+
+                last_props = key;
+            }
+
+            /**
+             * @return Addresses, DNS servers and routes that are relevant for connectivity
+             */
+            private String key(LinkProperties props) {
+                StringBuilder result = new StringBuilder();
+
+                for (LinkAddress address : props.getLinkAddresses()) {
+                    result.append(address.getAddress().getHostAddress())
+                            .append('/').append(address.getPrefixLength()).append(' ');
+                }
+
+                result.append("| ").append(props.getDnsServers());
+                result.append("| ").append(props.getRoutes());
+                return result.toString();
+            }
+
+            private String last_props = null;
+
+            @Override
+            public void onCapabilitiesChanged(@NonNull Network network, @NonNull NetworkCapabilities caps) {
+                if (Build.VERSION.SDK_INT < 23) return;
+
+                // Capabilities are delivered again on every change of signal strength
+                boolean captive = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_CAPTIVE_PORTAL);
+
+                if (captive && !this.captive) {
+                    alarm("Captive portal reported by system");
+                } else if (validated && !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+                    alarm("Network is not validated anymore");
+                }
+
+                this.captive = captive;
+                validated = caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+            }
+
+            private boolean captive = false;
+            private boolean validated = false;
+        };
+
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .build();
+
+        try {
+            wifi.getConnectivityManager().registerNetworkCallback(request, callback);
+        } catch (SecurityException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+            Logger.log(this, "Unable to register network callback");
+            callback = null;
+        }
+    }
+
+    @RequiresApi(21)
+    private void unregister() {
+        if (callback == null) return;
+
+        try {
+            wifi.getConnectivityManager().unregisterNetworkCallback(callback);
+        } catch (IllegalArgumentException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
+
+        callback = null;
+    }
+
+    /**
+     * Block until connection is lost or monitor is stopped.
+     *
+     * @param check Active connection check
+     */
+    public void run(Check check) {
+        if (Build.VERSION.SDK_INT >= 21) register();
+
+        try {
+            int interval = pref_interval;
+
+            while (running.get()) {
+                boolean alarmed = await(pref_internet_check ? interval * 1000L : Long.MAX_VALUE / 2);
+
+                if (!running.get()) break;
+                if (!pref_internet_check) continue;
+
+                if (!check.isConnected()) break;
+
+                if (alarmed || !pref_adaptive) {
+                    interval = pref_interval;
+                } else if (interval < pref_interval * MAX_BACKOFF) {
+                    interval = Math.min(interval * 2, pref_interval * MAX_BACKOFF);
+                    Logger.log(this, "Next check in " + interval + " seconds");
+                }
+            }
+        } finally {
+            if (Build.VERSION.SDK_INT >= 21) unregister();
+        }
+    }
+}
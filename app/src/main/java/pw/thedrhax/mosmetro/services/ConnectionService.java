@@ -27,6 +27,7 @@ import android.net.LinkProperties;
 import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
+import android.net.NetworkRequest;
 import android.os.Build;
 import android.preference.PreferenceManager;
 import android.text.SpannableString;
@@ -39,7 +40,10 @@ import androidx.annotation.NonNull;
 
 import java.net.NetworkInterface;
 import java.util.HashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import pw.thedrhax.mosmetro.R;
 import pw.thedrhax.mosmetro.activities.DebugActivity;
@@ -48,6 +52,8 @@ import pw.thedrhax.mosmetro.activities.SettingsActivity;
 import pw.thedrhax.mosmetro.authenticator.Gen204;
 import pw.thedrhax.mosmetro.authenticator.Provider;
 import pw.thedrhax.mosmetro.authenticator.Gen204.Gen204Result;
+import pw.thedrhax.mosmetro.services.ConnectionState.Event;
+import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.CaptivePortalFix;
 import pw.thedrhax.util.Listener;
 import pw.thedrhax.util.Logger;
@@ -68,13 +74,43 @@ public class ConnectionService extends IntentService {
     public static final String EXTRA_RUNNING = "RUNNING"; // boolean
     public static final String EXTRA_STOP = "stop"; // boolean
 
-    private static final ReentrantLock lock = new ReentrantLock();
+    private static final AtomicBoolean busy = new AtomicBoolean(false);
     private static final Listener<Boolean> running = new Listener<>(false);
-    private static String SSID = WifiUtils.UNKNOWN_SSID;
-    private boolean from_shortcut = false;
+
+    // Events sent to the worker loop by Intents: STOP and START (restart while stopping)
+    private static final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+
+    /**
+     * Start request passed from onStartCommand() to the worker thread.
+     * Intents received while the worker is busy are coalesced into the running one.
+     */
+    private static class Request {
+        final boolean from_shortcut;
+        final boolean from_debug;
+        final String SSID;
+
+        Request(boolean from_shortcut, boolean from_debug, String SSID) {
+            this.from_shortcut = from_shortcut;
+            this.from_debug = from_debug;
+            this.SSID = SSID;
+        }
+    }
+
+    private final AtomicReference<Request> request = new AtomicReference<>(null);
+
+    // Worker state, changed only by the worker thread
+    private String SSID = WifiUtils.UNKNOWN_SSID;
+    private volatile boolean from_shortcut = false;
     private boolean from_debug = false;
+    private Gen204 gen_204 = null;
+    private Provider provider = null;
+    private int attempt = 0;
 
     private ConnectivityManager.NetworkCallback networkCallback = null;
+
+    // Wakes up waitForIP() when LinkProperties of any Wi-Fi network change
+    private ConnectivityManager.NetworkCallback linkCallback = null;
+    private final Object link_lock = new Object();
     private Listener<Boolean> isWifi = new Listener<Boolean>(false) {
         @Override
         public void onChange(Boolean new_value) {
@@ -88,8 +124,6 @@ public class ConnectionService extends IntentService {
     private SharedPreferences settings;
     private int pref_retry_count;
     private int pref_ip_wait;
-    private int pref_internet_check_interval;
-    private boolean pref_internet_check;
     private boolean pref_manual_connection_monitoring;
     private boolean pref_notify_foreground;
 
@@ -115,9 +149,7 @@ public class ConnectionService extends IntentService {
         pref_retry_count = Util.getIntPreference(this, "pref_retry_count", 3);
         pref_ip_wait = Util.getIntPreference(this, "pref_ip_wait", 0);
         pref_notify_foreground = settings.getBoolean("pref_notify_foreground", true);
-        pref_internet_check = settings.getBoolean("pref_internet_check", true);
         pref_manual_connection_monitoring = settings.getBoolean("pref_manual_connection_monitoring", true);
-        pref_internet_check_interval = Util.getIntPreference(this, "pref_internet_check_interval", 10);
 
         final PendingIntent stop_intent = PendingIntent.getService(
                 this, 0,
@@ -156,9 +188,17 @@ public class ConnectionService extends IntentService {
             networkCallback = new ConnectivityManager.NetworkCallback() {
                 @Override
                 public void onAvailable(@NonNull Network network) {
+                    Gen204.invalidate();
+                    OkHttp.flush();
                     NetworkInfo info = cm.getNetworkInfo(network);
                     if (info != null) isWifi.set(info.getType() == ConnectivityManager.TYPE_WIFI);
                 }
+
+                @Override
+                public void onLost(@NonNull Network network) {
+                    Gen204.invalidate();
+                    OkHttp.flush();
+                }
             };
 
             // Ignore system bug https://issuetracker.google.com/issues/175055271
@@ -170,6 +210,49 @@ public class ConnectionService extends IntentService {
                 Logger.log(Logger.LEVEL.DEBUG, "Warning: Unable to register network callback");
             }
         }
+
+        if (Build.VERSION.SDK_INT >= 21) {
+            linkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onLinkPropertiesChanged(@NonNull Network network,
+                                                    @NonNull LinkProperties properties) {
+                    onLinkChanged();
+                }
+
+                @Override
+                public void onLost(@NonNull Network network) {
+                    onLinkChanged();
+                }
+            };
+
+            // Captive portals are not guaranteed to have NET_CAPABILITY_INTERNET
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                    .removeCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+
+            try {
+                wifi.getConnectivityManager().registerNetworkCallback(request, linkCallback);
+            } catch (SecurityException ex) {
+                linkCallback = null;
+                Logger.log(Logger.LEVEL.DEBUG, ex);
+                Logger.log(Logger.LEVEL.DEBUG, "Warning: Unable to register link callback");
+            }
+        }
+    }
+
+    /**
+     * Only a wake-up signal: callbacks may arrive for a previous Wi-Fi network,
+     * so the address is always checked through WifiManager.
+     */
+    private void onLinkChanged() {
+        synchronized (link_lock) {
+            link_lock.notifyAll();
+        }
+    }
+
+    private boolean isIPAssigned() {
+        return wifi.getIP() != 0;
     }
 
     private void notify (Provider.RESULT result) {
@@ -249,76 +332,76 @@ public class ConnectionService extends IntentService {
     }
 
     private boolean waitForIP() {
-        if (wifi.getIP() != 0) return true;
+        if (isIPAssigned()) return true;
 
-        int count = 0;
+        long start = System.currentTimeMillis();
 
         Logger.log(getString(R.string.ip_wait));
         notify.title(getString(R.string.ip_wait))
                 .progress(0, true)
                 .show();
 
-        while (wifi.getIP() == 0) {
-            if (!running.sleep(1000)) return false;
-
-            if (pref_ip_wait != 0 && count++ == pref_ip_wait) {
-                Logger.log(getString(R.string.error,
-                        getString(R.string.ip_wait_result,
-                            " " + getString(R.string.not), pref_ip_wait
-                        )
-                ));
-                return false;
+        // Wake up as soon as the service is stopped
+        Listener<Boolean> stop = new Listener<Boolean>(true) {
+            @Override
+            public void onChange(Boolean new_value) {
+                onLinkChanged();
             }
-        }
-
-        Logger.log(getString(R.string.ip_wait_result, "", count/2));
-        return true;
-    }
-
-    private Provider.RESULT connect(Provider provider) {
-        Provider.RESULT result;
-        int count = 0;
-        int pref_retry_delay = Util.getIntPreference(this, "pref_retry_delay", 5) * 1000;
-
-        do {
-            if (count > 0) {
-                String msg = String.format("%s (%s)",
-                                getString(R.string.notification_progress_waiting),
-                                getString(R.string.try_out_of, count + 1, pref_retry_count)
-                );
-
-                Logger.log(msg);
-                notify.text(msg).progress(0, true).show();
+        };
+        stop.subscribe(running);
+
+        try {
+            while (!isIPAssigned()) {
+                if (!running.get()) return false;
+
+                if (pref_ip_wait != 0 && System.currentTimeMillis() - start > pref_ip_wait * 1000) {
+                    Logger.log(getString(R.string.error,
+                            getString(R.string.ip_wait_result,
+                                " " + getString(R.string.not), pref_ip_wait
+                            )
+                    ));
+                    return false;
+                }
 
-                if (!running.sleep(pref_retry_delay)) {
-                    result = Provider.RESULT.INTERRUPTED;
-                    break;
+                // Woken up by linkCallback on API 21+, polling is only a fallback
+                synchronized (link_lock) {
+                    if (!isIPAssigned() && running.get()) {
+                        link_lock.wait(1000);
+                    }
                 }
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            stop.unsubscribe();
+        }
 
-            result = provider.start();
-
-            if (result == Provider.RESULT.NOT_REGISTERED) break;
-            if (from_shortcut) break;
-        } while (++count < pref_retry_count && running.get() && result == Provider.RESULT.ERROR);
-
-        return result;
+        Logger.log(getString(R.string.ip_wait_result, "",
+                (int) ((System.currentTimeMillis() - start) / 1000)
+        ));
+        return true;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (intent == null) return START_NOT_STICKY;
 
+        // Any Wi-Fi event may change the result of connection check
+        Gen204.invalidate();
+
         // Stop by intent
         if (ACTION_STOP.equals(intent.getAction()) || intent.getBooleanExtra(EXTRA_STOP, false)) {
-            if (running.get() && lock.isLocked()) {
+            if (running.get() && busy.get()) {
                 Logger.log(this, "Stopping by Intent");
-                running.set(false);
+                events.offer(Event.STOP);
+                running.set(false); // interrupt the current state handler
             }
             return START_NOT_STICKY;
         }
 
         String source;
+        boolean from_shortcut, from_debug;
         if (intent.getBooleanExtra(EXTRA_DEBUG, false)) {
             source = "Started from DebugActivity";
             from_shortcut = true;
@@ -333,12 +416,13 @@ public class ConnectionService extends IntentService {
             from_debug = false;
         }
 
-        SSID = wifi.getSSID(intent);
+        String SSID = wifi.getSSID(intent);
 
         // Ignore if service is already running
-        if (lock.isLocked()) {
+        if (busy.get()) {
             // Service is shutting down. Trying to interrupt
-            if (!running.get()) { 
+            if (!running.get()) {
+                events.offer(Event.START);
                 running.set(true);
             }
 
@@ -350,42 +434,86 @@ public class ConnectionService extends IntentService {
             return START_NOT_STICKY;
         }
 
+        // Only the first Intent of a burst reaches the worker
+        if (!busy.compareAndSet(false, true)) {
+            return START_NOT_STICKY;
+        }
+
+        request.set(new Request(from_shortcut, from_debug, SSID));
+
         Logger.log(this, source);
         onStart(intent, startId);
         return START_NOT_STICKY;
     }
 
     public void onHandleIntent(Intent intent) {
-        if (lock.tryLock()) {
-            Logger.log(this, "Broadcast | ConnectionService (RUNNING = true)");
-            sendBroadcast(new Intent(ACTION_EVENT).putExtra(EXTRA_RUNNING, true));
+        Request request = this.request.getAndSet(null);
 
-            Logger.date(">>> ");
-            Logger.log(getString(R.string.version, Version.getFormattedVersion()));
-            Logger.log(getString(R.string.auth_connecting, SSID));
+        if (request == null) {
+            Logger.log(this, "Already running");
+            return;
+        }
+
+        from_shortcut = request.from_shortcut;
+        from_debug = request.from_debug;
+        SSID = request.SSID;
+
+        Logger.log(this, "Broadcast | ConnectionService (RUNNING = true)");
+        sendBroadcast(new Intent(ACTION_EVENT).putExtra(EXTRA_RUNNING, true));
+
+        Logger.date(">>> ");
+        Logger.log(getString(R.string.version, Version.getFormattedVersion()));
+        Logger.log(getString(R.string.auth_connecting, SSID));
+
+        events.clear(); // left from the previous run
+        running.set(true);
 
-            running.set(true);
-            boolean first_iteration = true;
-            while (running.get()) {
+        ConnectionState state = ConnectionState.IDLE;
+        Event event = Event.START;
+        boolean first_iteration = true;
+
+        while (true) {
+            ConnectionState next = state.next(event);
+            Logger.log(this, "State | %s + %s = %s", state, event, next);
+            state = next;
+
+            if (state == ConnectionState.IDLE) {
+                // Service was started again while shutting down
+                if (receive() != Event.START) break;
+
+                event = Event.START;
+                continue;
+            }
+
+            if (state == ConnectionState.WAIT_IP) {
                 if (!first_iteration) {
                     Logger.log(this, "Still alive!");
                 } else {
                     first_iteration = false;
                 }
+            }
+
+            event = handle(state);
 
-                main();
+            // Events from Intents override the result of the handler
+            Event external = receive();
+            if (external != null) {
+                event = external;
+            } else if (!running.get()) {
+                event = Event.STOP;
             }
-            lock.unlock();
+        }
 
-            notify.hide();
+        gen_204 = null;
+        provider = null;
+        busy.set(false);
 
-            Logger.log(this, "Broadcast | ConnectionService (RUNNING = false)");
-            sendBroadcast(new Intent(ACTION_EVENT).putExtra(EXTRA_RUNNING, false));
+        notify.hide();
 
-            Logger.date("<<< ");
-        } else {
-            Logger.log(this, "Already running");
-        }
+        Logger.log(this, "Broadcast | ConnectionService (RUNNING = false)");
+        sendBroadcast(new Intent(ACTION_EVENT).putExtra(EXTRA_RUNNING, false));
+
+        Logger.date("<<< ");
     }
 
     private boolean ignore_midsession = false;
@@ -413,6 +541,7 @@ public class ConnectionService extends IntentService {
 
         if (!running.sleep(3000)) return false;
 
+        Gen204.invalidate(); // don't reuse the result from midsession Provider
         res_204 = gen_204.check();
 
         if (!res_204.isConnected()) {
@@ -496,7 +625,37 @@ public class ConnectionService extends IntentService {
         return res_204.isConnected();
     }
 
-    private void main() {
+    /**
+     * @return Last event received from Intents since the previous call, or null.
+     *         Bursts of Intents are coalesced into one event.
+     */
+    private static Event receive() {
+        Event result = null;
+
+        Event event;
+        while ((event = events.poll()) != null) {
+            result = event;
+        }
+
+        return result;
+    }
+
+    /*
+     * State handlers. Each one returns the Event that will cause the next transition.
+     */
+
+    private Event handle(ConnectionState state) {
+        switch (state) {
+            case WAIT_IP: return onWaitIP();
+            case DETECT: return onDetect();
+            case AUTH: return onAuth();
+            case BACKOFF: return onBackoff();
+            case MONITOR: return onMonitor();
+            default: return Event.STOP;
+        }
+    }
+
+    private Event onWaitIP() {
         notify.icon(R.drawable.ic_notification_connecting_colored,
                     R.drawable.ic_notification_connecting);
 
@@ -506,13 +665,20 @@ public class ConnectionService extends IntentService {
                 notify(Provider.RESULT.ERROR);
                 running.set(false);
             }
-            return;
+            return Event.STOP;
         }
 
         if (wifi.isVpnConnected()) {
             Logger.log(Logger.LEVEL.DEBUG, "Warning: VPN detected!");
         }
 
+        // Network callbacks are not available before API 24
+        OkHttp.flush();
+
+        return Event.IP_READY;
+    }
+
+    private Event onDetect() {
         new Notify(this).id(2).hide(); // hide error notification
 
         notify.title(getString(R.string.auth_connecting, SSID))
@@ -520,9 +686,9 @@ public class ConnectionService extends IntentService {
                 .progress(0, true)
                 .show();
 
-        Gen204 gen_204 = new Gen204(this, running);
+        gen_204 = new Gen204(this, running);
 
-        Provider provider = Provider.find(this, running)
+        provider = Provider.find(this, running)
                 .setRunningListener(running)
                 .setGen204(gen_204)
                 .setCallback(new Provider.ICallback() {
@@ -539,15 +705,26 @@ public class ConnectionService extends IntentService {
 
         notify.text(getString(R.string.auth_waiting)).show();
 
-        // Try to connect
         Logger.log(getString(R.string.algorithm_name, provider.getName()));
-        Provider.RESULT result = connect(provider);
+        attempt = 0;
+        return Event.DETECTED;
+    }
+
+    private Event onAuth() {
+        Provider.RESULT result = provider.start();
+
+        // Retry on errors, but not if started from shortcut
+        if (result == Provider.RESULT.ERROR && !from_shortcut && running.get()) {
+            if (++attempt < pref_retry_count) {
+                return Event.FAILED;
+            }
+        }
 
         // Notify user if not interrupted
         if (running.get()) {
             notify(result);
         } else {
-            return;
+            return Event.STOP;
         }
 
         if (wifi.isVpnConnected() && (result == Provider.RESULT.NOT_SUPPORTED || result == Provider.RESULT.ERROR)) {
@@ -558,7 +735,7 @@ public class ConnectionService extends IntentService {
         switch (result) {
             case RESTART:
                 Logger.log(this, "Restarting by result (" + result.name() + ")");
-                return;
+                return Event.RESTART;
             case CONNECTED:
             case ALREADY_CONNECTED:
                 if (Build.VERSION.SDK_INT >= 21) wifi.report(true);
@@ -567,13 +744,30 @@ public class ConnectionService extends IntentService {
                 ignore_midsession = false;
                 isConnected(gen_204, gen_204.getLastResult());
 
-                if (!from_shortcut || pref_manual_connection_monitoring) break;
+                if (!from_shortcut || pref_manual_connection_monitoring) {
+                    return Event.CONNECTED;
+                }
             default:
                 Logger.log(this, "Stopping by result (" + result.name() + ")");
                 running.set(false);
-                return;
+                return Event.STOP;
         }
+    }
 
+    private Event onBackoff() {
+        String msg = String.format("%s (%s)",
+                        getString(R.string.notification_progress_waiting),
+                        getString(R.string.try_out_of, attempt + 1, pref_retry_count)
+        );
+
+        Logger.log(msg);
+        notify.text(msg).progress(0, true).show();
+
+        int pref_retry_delay = Util.getIntPreference(this, "pref_retry_delay", 5) * 1000;
+        return running.sleep(pref_retry_delay) ? Event.RETRY : Event.STOP;
+    }
+
+    private Event onMonitor() {
         Logger.log(this, "Broadcast | CONNECTED");
         sendBroadcast(new Intent(ACTION_EVENT_CONNECTED)
                 .putExtra("SSID", SSID)
@@ -581,13 +775,7 @@ public class ConnectionService extends IntentService {
         );
 
         // Wait while internet connection is available
-        int count = 0;
-        while (running.sleep(1000)) {
-            if (pref_internet_check && ++count == pref_internet_check_interval) {
-                count = 0;
-                if (!isConnected(gen_204)) break;
-            }
-        }
+        new ConnectionMonitor(this, running).run(() -> isConnected(gen_204));
 
         Logger.log(this, "Broadcast | DISCONNECTED");
         sendBroadcast(new Intent(ACTION_EVENT_DISCONNECTED));
@@ -599,7 +787,9 @@ public class ConnectionService extends IntentService {
             wifi.getWifiManager().reassociate();
             wifi.getWifiManager().reconnect();
         }
-	}
+
+        return Event.DISCONNECTED;
+    }
 
     public static boolean isRunning() {
         return running.get();
@@ -611,6 +801,10 @@ public class ConnectionService extends IntentService {
             wifi.getConnectivityManager().unregisterNetworkCallback(networkCallback);
         }
 
+        if (Build.VERSION.SDK_INT >= 21 && linkCallback != null) {
+            wifi.getConnectivityManager().unregisterNetworkCallback(linkCallback);
+        }
+
         super.onDestroy();
     }
 
@@ -619,6 +813,7 @@ public class ConnectionService extends IntentService {
         Logger.log(this, "onTaskRemoved()");
         if (!settings.getBoolean("pref_notify_foreground", true)) {
             Logger.log("Stopping because of task removal");
+            events.offer(Event.STOP);
             running.set(false);
         }
     }
@@ -0,0 +1,81 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+/**
+ * Explicit state machine of the ConnectionService.
+ *
+ *   IDLE     + START        = WAIT_IP
+ *   WAIT_IP  + IP_READY     = DETECT
+ *   DETECT   + DETECTED     = AUTH
+ *   AUTH     + CONNECTED    = MONITOR
+ *   AUTH     + FAILED       = BACKOFF
+ *   AUTH     + RESTART      = WAIT_IP
+ *   BACKOFF  + RETRY        = AUTH
+ *   MONITOR  + DISCONNECTED = WAIT_IP
+ *
+ * Any state goes back to IDLE on STOP and starts over on START. Both are sent by
+ * Intents (see ConnectionService.onStartCommand()). Transitions don't depend on
+ * Android classes, so they can be tested without a device.
+ *
+ * @see ConnectionService
+ */
+public enum ConnectionState {
+    IDLE, WAIT_IP, DETECT, AUTH, MONITOR, BACKOFF;
+
+    public enum Event {
+        START, IP_READY, DETECTED, CONNECTED, FAILED, RETRY, RESTART, DISCONNECTED, STOP
+    }
+
+    /**
+     * @param event Event received in this state
+     * @return Next state
+     * @throws IllegalStateException if this event is not expected in current state
+     */
+    public ConnectionState next(Event event) {
+        if (event == Event.STOP) return IDLE;
+        if (event == Event.START) return WAIT_IP;
+
+        switch (this) {
+            case WAIT_IP:
+                if (event == Event.IP_READY) return DETECT;
+                break;
+
+            case DETECT:
+                if (event == Event.DETECTED) return AUTH;
+                break;
+
+            case AUTH:
+                if (event == Event.CONNECTED) return MONITOR;
+                if (event == Event.FAILED) return BACKOFF;
+                if (event == Event.RESTART) return WAIT_IP;
+                break;
+
+            case BACKOFF:
+                if (event == Event.RETRY) return AUTH;
+                break;
+
+            case MONITOR:
+                if (event == Event.DISCONNECTED) return WAIT_IP;
+                break;
+        }
+
+        throw new IllegalStateException("Unexpected event " + event + " in state " + this);
+    }
+}
@@ -26,8 +26,7 @@ import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiManager;
 import android.preference.PreferenceManager;
 
-import java.util.Locale;
-
+import pw.thedrhax.mosmetro.authenticator.Provider;
 import pw.thedrhax.util.Logger;
 import pw.thedrhax.util.WifiUtils;
 
@@ -89,13 +88,12 @@ public class NetworkReceiver extends BroadcastReceiver implements Logger.Metadat
         }
 
         if (state != null) {
-            Logger.log(this, String.format(Locale.ENGLISH, "Intent: %s (%s)",
-                    intent.getAction(), state.name()
-            ));
+            Logger.log(this, "Intent: %s (%s)", intent.getAction(), state.name());
 
             switch (state) {
                 case COMPLETED:
                 case ASSOCIATED: // This appears randomly between multiple CONNECTED states
+                    prewarmWebView(settings, wifi);
                     startService();
                     break;
                 case SCANNING: // Some devices do not report DISCONNECTED state so...
@@ -106,7 +104,7 @@ public class NetworkReceiver extends BroadcastReceiver implements Logger.Metadat
                     break;
             }
         } else {
-            Logger.log(this, "Unknown Intent: " + intent.getAction());
+            Logger.log(this, "Unknown Intent: %s", intent.getAction());
         }
     }
 
@@ -125,6 +123,24 @@ public class NetworkReceiver extends BroadcastReceiver implements Logger.Metadat
         context.startService(service);
     }
 
+    /**
+     * Create WebView in advance to save time in WebViewProvider.init()
+     */
+    private void prewarmWebView(SharedPreferences settings, WifiUtils wifi) {
+        if (!settings.getBoolean("pref_webview_prewarm", false)) return;
+        if (!settings.getBoolean("pref_mosmetro_v2_wv", false)) return;
+        if (!Provider.isSSIDSupported(wifi.getSSID(intent))) return;
+
+        try {
+            context.startService(
+                    new Intent(context, WebViewService.class)
+                            .setAction(WebViewService.ACTION_PREWARM)
+            );
+        } catch (IllegalStateException ex) { // Background start is not allowed
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
+    }
+
     /**
      * Stop ConnectionService
      */
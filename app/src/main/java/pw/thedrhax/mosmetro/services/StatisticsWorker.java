@@ -0,0 +1,223 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import pw.thedrhax.mosmetro.BuildConfig;
+import pw.thedrhax.mosmetro.httpclient.Client;
+import pw.thedrhax.mosmetro.httpclient.HttpResponse;
+import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
+import pw.thedrhax.mosmetro.updater.BackendRequest;
+import pw.thedrhax.util.Logger;
+
+/**
+ * Uploads connection statistics in the background.
+ *
+ * Records are appended to a file (outbox) and stay there until the server
+ * accepts them, so they survive network errors and process restarts. All
+ * records collected so far are sent in one run using a single Client.
+ */
+public class StatisticsWorker extends Worker {
+    private static final String OUTBOX = "statistics.jsonl";
+    private static final int OUTBOX_MAX = 100;
+
+    private static final Object lock = new Object();
+
+    private final Context context;
+
+    public StatisticsWorker(Context context, WorkerParameters params) {
+        super(context, params);
+        this.context = context;
+    }
+
+    /**
+     * Save a statistics record to the outbox and schedule the upload.
+     * This method performs disk IO and should not be called from the UI thread.
+     */
+    public static void add(Context context, Map<String, String> params) {
+        synchronized (lock) {
+            List<String> records = read(context);
+            records.add(JSONObject.toJSONString(params));
+            write(context, records);
+        }
+
+        schedule(context);
+    }
+
+    private static void schedule(Context context) {
+        Constraints constraints = new Constraints();
+        constraints.setRequiredNetworkType(NetworkType.CONNECTED);
+
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(StatisticsWorker.class)
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 30, TimeUnit.SECONDS)
+                .addTag("StatisticsWorker")
+                .build();
+
+        // Records added while the worker is finishing would be missed with KEEP
+        WorkManager.getInstance(context).enqueueUniqueWork(
+            "StatisticsWorker",
+            ExistingWorkPolicy.APPEND_OR_REPLACE,
+            request
+        );
+    }
+
+    private static List<String> read(Context context) {
+        List<String> records = new LinkedList<>();
+        File file = new File(context.getFilesDir(), OUTBOX);
+
+        if (!file.exists()) return records;
+
+        try (FileReader is = new FileReader(file)) {
+            BufferedReader reader = new BufferedReader(is);
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) records.add(line);
+            }
+        } catch (IOException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
+
+        return records;
+    }
+
+    private static void write(Context context, List<String> records) {
+        File file = new File(context.getFilesDir(), OUTBOX);
+
+        if (records.isEmpty()) {
+            file.delete();
+            return;
+        }
+
+        // Drop the oldest records if the server is unreachable for too long
+        while (records.size() > OUTBOX_MAX) {
+            records.remove(0);
+        }
+
+        try (FileWriter writer = new FileWriter(file, false)) {
+            for (String record : records) {
+                writer.write(record + '\n');
+            }
+        } catch (IOException ex) {
+            Logger.log(Logger.LEVEL.DEBUG, ex);
+        }
+    }
+
+    /**
+     * Remove first N records from the outbox.
+     */
+    private static void remove(Context context, int count) {
+        synchronized (lock) {
+            List<String> records = read(context);
+
+            for (int i = 0; i < count && !records.isEmpty(); i++) {
+                records.remove(0);
+            }
+
+            write(context, records);
+        }
+    }
+
+    @Override @NonNull
+    public Result doWork() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        // Redirects are most likely caused by captive portals
+        Client client = new OkHttp(context).setFollowRedirects(false);
+
+        String url = settings.getString(
+                BackendRequest.PREF_BACKEND_URL,
+                BuildConfig.API_URL_DEFAULT
+        ) + BuildConfig.API_REL_STATISTICS;
+
+        List<String> records;
+        synchronized (lock) {
+            records = read(context);
+        }
+
+        while (!records.isEmpty()) {
+            int sent = 0;
+
+            try {
+                for (String record : records) {
+                    JSONObject json = (JSONObject) new JSONParser().parse(record);
+
+                    HashMap<String, String> params = new HashMap<>();
+                    for (Object key : json.keySet()) {
+                        params.put((String) key, String.valueOf(json.get(key)));
+                    }
+
+                    HttpResponse response = client.post(url, params).execute();
+                    int code = response.getResponseCode();
+
+                    // Record is rejected by server, sending it again won't help
+                    if (code / 100 == 4) {
+                        Logger.log(this, "Record rejected: " + code);
+                    } else if (code / 100 != 2) { // server error or captive portal
+                        throw new IOException("Unexpected response: " + code);
+                    }
+
+                    sent++;
+                }
+            } catch (ParseException | ClassCastException ex) {
+                Logger.log(Logger.LEVEL.DEBUG, ex);
+                sent++; // Skip broken record
+            } catch (IOException ex) {
+                Logger.log(Logger.LEVEL.DEBUG, ex);
+                remove(context, sent);
+                return Result.retry();
+            }
+
+            synchronized (lock) {
+                remove(context, sent);
+                records = read(context);
+            }
+        }
+
+        return Result.success();
+    }
+}
@@ -22,7 +22,9 @@ import android.app.Service;
 import android.content.Intent;
 import android.graphics.PixelFormat;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import androidx.annotation.LayoutRes;
 import androidx.annotation.Nullable;
 
@@ -37,8 +39,16 @@ import pw.thedrhax.mosmetro.httpclient.Client;
 import pw.thedrhax.mosmetro.httpclient.InterceptedWebViewClient;
 import pw.thedrhax.mosmetro.httpclient.clients.OkHttp;
 import pw.thedrhax.util.Listener;
+import pw.thedrhax.util.Logger;
 
 public class WebViewService extends Service {
+    /**
+     * Create the WebView ahead of time, before any Provider binds to this service.
+     * Service will stop itself if nobody binds to it within PREWARM_TIMEOUT.
+     */
+    public static final String ACTION_PREWARM = "pw.thedrhax.mosmetro.services.WebViewService.PREWARM";
+    private static final int PREWARM_TIMEOUT = 60000;
+
     private final Listener<Boolean> running = new Listener<Boolean>(true) {
         @Override
         public void onChange(Boolean new_value) {
@@ -53,6 +63,19 @@ public class WebViewService extends Service {
     private WebView webview;
     private InterceptedWebViewClient webviewclient;
 
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean bound = false;
+
+    private final Runnable prewarm_timeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!bound) {
+                Logger.log(WebViewService.this, "Pre-warmed WebView was not used, stopping");
+                stopSelf();
+            }
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -63,6 +86,15 @@ public class WebViewService extends Service {
         webviewclient.setup();
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_PREWARM.equals(intent.getAction()) && !bound) {
+            handler.removeCallbacks(prewarm_timeout);
+            handler.postDelayed(prewarm_timeout, PREWARM_TIMEOUT);
+        }
+        return START_NOT_STICKY;
+    }
+
     private void setContentView(@LayoutRes int layoutResID) {
         view = new LinearLayout(this);
 
@@ -90,6 +122,7 @@ public class WebViewService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacks(prewarm_timeout);
         webviewclient.onDestroy();
         webview = null;
         if (view != null && wm != null) {
@@ -149,11 +182,14 @@ public class WebViewService extends Service {
 
     @Nullable @Override
     public IBinder onBind(Intent intent) {
+        handler.removeCallbacks(prewarm_timeout);
+        bound = true;
         return binder;
     }
 
     @Override
     public boolean onUnbind(Intent intent) {
+        bound = false;
         running.unsubscribe();
         running.set(false);
         return false;
@@ -0,0 +1,122 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of assets stored as UTF-8 encoded byte arrays.
+ *
+ * Assets are read only once and can be served without any conversions.
+ * Placeholders in templates are replaced by simple byte splicing.
+ */
+public final class AssetCache {
+    private static final Map<String, byte[]> cache = new HashMap<>();
+
+    private AssetCache() {}
+
+    /**
+     * Get the contents of the asset. The result always ends with a new line,
+     * so assets can be safely concatenated.
+     */
+    @NonNull
+    public static byte[] get(Context context, String filename) throws IOException {
+        synchronized (cache) {
+            byte[] result = cache.get(filename);
+
+            if (result == null) {
+                result = read(context, filename);
+                cache.put(filename, result);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Get the contents of the asset with all occurrences of placeholder
+     * replaced by value.
+     */
+    @NonNull
+    public static byte[] get(Context context, String filename,
+                             String placeholder, String value) throws IOException {
+        byte[] data = get(context, filename);
+        byte[] needle = placeholder.getBytes("UTF-8");
+        byte[] replacement = value.getBytes("UTF-8");
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        int start = 0;
+
+        for (int i = 0; i <= data.length - needle.length; i++) {
+            if (!matches(data, i, needle)) continue;
+
+            result.write(data, start, i - start);
+            result.write(replacement, 0, replacement.length);
+            start = i + needle.length;
+            i = start - 1;
+        }
+
+        result.write(data, start, data.length - start);
+        return result.toByteArray();
+    }
+
+    @NonNull
+    public static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+        for (byte[] part : parts) {
+            result.write(part, 0, part.length);
+        }
+
+        return result.toByteArray();
+    }
+
+    private static boolean matches(byte[] data, int offset, byte[] needle) {
+        for (int i = 0; i < needle.length; i++) {
+            if (data[offset + i] != needle[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] read(Context context, String filename) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        try (InputStream is = context.getAssets().open(filename)) {
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                result.write(buffer, 0, count);
+            }
+        }
+
+        byte[] data = result.toByteArray();
+        if (data.length == 0 || data[data.length - 1] != '\n') {
+            result.write('\n');
+            data = result.toByteArray();
+        }
+
+        return data;
+    }
+}
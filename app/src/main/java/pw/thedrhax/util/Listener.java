@@ -18,14 +18,16 @@
 
 package pw.thedrhax.util;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
-import android.os.SystemClock;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Util class used to monitor every change of the stored variable.
@@ -38,18 +40,60 @@ import android.os.SystemClock;
  *   - Interruptible delays
  *   - Stack Overflow protection by checking if child is the master at the same time
  *
+ * Subscribers are stored in an immutable copy-on-write list, so set() walks a snapshot
+ * without holding any locks. Masters keep only weak references to their subscribers,
+ * so short-lived children can't leak even if they never unsubscribe.
+ *
+ * Concurrent set() calls are ordered by a short lock around storing the value. Each
+ * call gets a version number and stops notifying as soon as a newer value is stored,
+ * so a slow call can't overwrite the newer value in subscribers.
+ *
  * @author Dmitry Karikh <the.dr.hax@gmail.com>
  * @param <T> type of the stored variable
  */
 public class Listener<T> {
-    private final Queue<Listener<T>> masters = new ConcurrentLinkedQueue<>();
-    private final Queue<Listener<T>> callbacks = new ConcurrentLinkedQueue<>();
-    private T value;
+    private final Map<Listener<T>,Boolean> masters = new ConcurrentHashMap<>();
+    private final AtomicReference<List<WeakReference<Listener<T>>>> callbacks =
+            new AtomicReference<>(Collections.<WeakReference<Listener<T>>>emptyList());
+    private volatile T value;
+    private final Object lock = new Object(); // used to wake up sleeping threads
+
+    private final Object set_lock = new Object(); // orders concurrent set() calls
+    private volatile long version = 0; // number of the last set() call
 
     private int debounce_ms = 0;
     private Future<?> last_call = null;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
 
+    /**
+     * Monotonic time source in milliseconds. Same as SystemClock.uptimeMillis(),
+     * but also available in local unit tests, where it can be replaced.
+     */
+    interface Clock {
+        long millis();
+    }
+
+    static Clock clock = () -> System.nanoTime() / 1000000;
+
+    /**
+     * Process-wide scheduler for debounced Listeners. It is created on the first
+     * debounced change and its only thread exits after being idle for a while.
+     */
+    static class Scheduler {
+        static final String THREAD_NAME = "Listener.Scheduler";
+        static final int KEEP_ALIVE = 10; // seconds
+
+        private static final ScheduledThreadPoolExecutor INSTANCE =
+                new ScheduledThreadPoolExecutor(1, runnable -> {
+                    Thread thread = new Thread(runnable, THREAD_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        static {
+            INSTANCE.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+            INSTANCE.allowCoreThreadTimeOut(true);
+        }
+    }
 
     public Listener(T initial_value) {
         value = initial_value;
@@ -59,15 +103,32 @@ public class Listener<T> {
         debounce_ms = time_ms; return this;
     }
 
-    public final synchronized void set(T new_value) {
-        value = new_value;
+    private void store(T new_value) {
+        synchronized (lock) {
+            value = new_value;
+            lock.notifyAll();
+        }
+    }
+
+    public final void set(T new_value) {
+        final long current;
+        final List<WeakReference<Listener<T>>> subscribers;
+
+        synchronized (set_lock) {
+            store(new_value);
+            current = ++version;
+            subscribers = callbacks.get();
+        }
 
         if (debounce_ms == 0) {
+            if (version != current) return; // newer value is delivered by another call
             onChange(new_value);
-        } else {
+        } else synchronized (this) {
+            if (version != current) return; // don't replace the newer scheduled call
+
             Future<?> prev_call = last_call;
 
-            last_call = scheduler.schedule(new Runnable() {
+            last_call = Scheduler.INSTANCE.schedule(new Runnable() {
                 @Override
                 public void run() {
                     onChange(new_value);
@@ -80,14 +141,67 @@ public class Listener<T> {
             }
         }
 
-        for (Listener<T> callback : callbacks) {
-            if (callback.callbacks.contains(this)) {
-                callback.value = new_value;
+        boolean collected = false;
+
+        for (WeakReference<Listener<T>> reference : subscribers) {
+            if (version != current) break;
+
+            Listener<T> callback = reference.get();
+
+            if (callback == null) {
+                collected = true;
+            } else if (masters.containsKey(callback)) { // callback is also our master
+                callback.store(new_value);
                 callback.onChange(new_value);
             } else {
                 callback.set(new_value);
             }
         }
+
+        if (collected) {
+            removeCallback(null);
+        }
+    }
+
+    /*
+     * Copy-on-write operations with the list of subscribers
+     */
+
+    private void addCallback(Listener<T> callback) {
+        while (true) {
+            List<WeakReference<Listener<T>>> current = callbacks.get();
+            List<WeakReference<Listener<T>>> updated = new ArrayList<>(current.size() + 1);
+
+            for (WeakReference<Listener<T>> reference : current) {
+                Listener<T> listener = reference.get();
+                if (listener == callback) return;
+                if (listener != null) updated.add(reference);
+            }
+
+            updated.add(new WeakReference<>(callback));
+
+            if (callbacks.compareAndSet(current, Collections.unmodifiableList(updated))) return;
+        }
+    }
+
+    /**
+     * Remove the subscriber along with all garbage collected ones
+     * @param callback Subscriber to be removed or null to remove only collected ones
+     */
+    private void removeCallback(Listener<T> callback) {
+        while (true) {
+            List<WeakReference<Listener<T>>> current = callbacks.get();
+            List<WeakReference<Listener<T>>> updated = new ArrayList<>(current.size());
+
+            for (WeakReference<Listener<T>> reference : current) {
+                Listener<T> listener = reference.get();
+                if (listener != null && listener != callback) updated.add(reference);
+            }
+
+            if (updated.size() == current.size()) return;
+
+            if (callbacks.compareAndSet(current, Collections.unmodifiableList(updated))) return;
+        }
     }
 
     public final T get() {
@@ -103,46 +217,44 @@ public class Listener<T> {
      */
     public T sleep(int ms) {
         T initial_value = value;
+        long deadline = clock.millis() + ms;
+        boolean interrupted = false;
 
-        while (ms > 0) {
-            if (ms > 100) {
-                SystemClock.sleep(100);
-                ms -= 100;
-            } else {
-                SystemClock.sleep(ms);
-                ms = 0;
+        synchronized (lock) {
+            long left;
+            while (value == initial_value && (left = deadline - clock.millis()) > 0) {
+                try {
+                    lock.wait(left);
+                } catch (InterruptedException ex) {
+                    // Same as SystemClock.sleep(): ignore, but preserve the interrupted status
+                    interrupted = true;
+                }
             }
+        }
 
-            if (value != initial_value) {
-                return value;
-            }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
 
         return value;
     }
 
     public void subscribe(Listener<T> master) {
-        if (!master.callbacks.contains(this)) {
-            master.callbacks.add(this);
-        }
-        if (!masters.contains(master)) {
-            masters.add(master);
+        if (masters.put(master, true) == null) {
+            master.addCallback(this);
         }
-        this.value = master.value;
+        store(master.value);
     }
 
     public void unsubscribe() {
-        for (Listener<T> master : masters) {
+        for (Listener<T> master : masters.keySet()) {
             unsubscribe(master);
         }
     }
 
     public void unsubscribe(Listener<T> master) {
-        if (master.callbacks.contains(this)) {
-            master.callbacks.remove(this);
-        }
-        if (masters.contains(master)) {
-            masters.remove(master);
+        if (masters.remove(master) != null) {
+            master.removeCallback(this);
         }
     }
 
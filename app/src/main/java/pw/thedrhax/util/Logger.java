@@ -26,25 +26,38 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.preference.PreferenceManager;
+import androidx.annotation.NonNull;
 import androidx.core.content.FileProvider;
 
 import android.text.SpannableString;
 import android.util.Log;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.UnknownHostException;
 import java.text.DateFormat;
-import java.util.Collection;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.acra.ACRA;
 
@@ -55,24 +68,61 @@ public class Logger {
 
     public enum LEVEL {INFO, DEBUG}
 
-    private static final Map<LEVEL,LogWriter> logs = new HashMap<LEVEL,LogWriter>() {{
+    private static volatile Map<LEVEL,LogWriter> logs = new EnumMap<LEVEL,LogWriter>(LEVEL.class) {{
         for (LEVEL level : LEVEL.values()) {
-            put(level, new LogWriter());
+            put(level, new LogWriter(capacity(level)));
         }
     }};
 
-    private static long last_timestamp = 0;
+    private static int capacity(LEVEL level) {
+        return level == LEVEL.INFO ? 100 : 2000;
+    }
+
+    private static final AtomicLong last_timestamp = new AtomicLong(0);
 
-    private static String timestamp() {
-        long diff = System.currentTimeMillis() - last_timestamp;
-        last_timestamp = System.currentTimeMillis();
+    private static long timestamp() {
+        long now = System.currentTimeMillis();
+        return now - last_timestamp.getAndSet(now);
+    }
 
+    private static StringBuilder timestamp(StringBuilder builder, long diff) {
         if (diff > 99000) {
-            return "[+>99s]";
+            return builder.append("[+>99s]");
         } else if (diff > 9999) {
-            return String.format(Locale.ENGLISH, "[+%03ds]", diff / 1000);
+            return pad(builder.append("[+"), diff / 1000, 3).append("s]");
         } else {
-            return String.format(Locale.ENGLISH, "[+%04d]", diff);
+            return pad(builder.append("[+"), diff, 4).append(']');
+        }
+    }
+
+    private static StringBuilder pad(StringBuilder builder, long value, int width) {
+        String digits = Long.toString(value);
+        for (int i = digits.length(); i < width; i++) {
+            builder.append('0');
+        }
+        return builder.append(digits);
+    }
+
+    /**
+     * Single background thread that writes queued messages to log files
+     */
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    private static final int FLUSH_INTERVAL = 1000;
+
+    static {
+        flusher.scheduleWithFixedDelay(() -> {
+            for (LogWriter writer : logs.values()) {
+                writer.flush(false);
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write all queued messages to log files immediately
+     */
+    public static void flush() {
+        for (LogWriter writer : logs.values()) {
+            writer.flush();
         }
     }
 
@@ -82,25 +132,46 @@ public class Logger {
 
     private static boolean pref_debug_logcat = false;
     private static boolean pref_debug_testing = false;
+    private static boolean crash_handler = false;
+    private static File report_file = null;
 
     public static void configure(Context context) {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
         pref_debug_logcat = settings.getBoolean("pref_debug_logcat", false);
         pref_debug_testing = settings.getBoolean("pref_debug_testing", false);
+        report_file = new File(context.getFilesDir(), REPORT_FILE);
 
-        for (LEVEL level : LEVEL.values()) {
-            if (logs.containsKey(level)) {
-                logs.get(level).close();
-                logs.remove(level);
-            }
+        Map<LEVEL,LogWriter> old_logs = logs;
+        Map<LEVEL,LogWriter> new_logs = new EnumMap<>(LEVEL.class);
 
-            LogWriter writer = new LogWriter(
+        for (LEVEL level : LEVEL.values()) {
+            new_logs.put(level, new LogWriter(
                 context.getFilesDir(),
-                "log-" + level.toString().toLowerCase() + ".txt",
-                level == LEVEL.INFO ? 100 : 2000
-            );
+                "log-" + level.toString().toLowerCase(),
+                capacity(level)
+            ));
+        }
 
-            logs.put(level, writer);
+        logs = new_logs;
+
+        for (LogWriter writer : old_logs.values()) {
+            writer.close();
+        }
+
+        // Make sure that ACRA will see the last messages before crash
+        synchronized (Logger.class) {
+            if (!crash_handler) {
+                final Thread.UncaughtExceptionHandler parent = Thread.getDefaultUncaughtExceptionHandler();
+
+                Thread.setDefaultUncaughtExceptionHandler((thread, ex) -> {
+                    prepareReport();
+                    if (parent != null) {
+                        parent.uncaughtException(thread, ex);
+                    }
+                });
+
+                crash_handler = true;
+            }
         }
 
         log(LEVEL.DEBUG, CUT);
@@ -111,26 +182,37 @@ public class Logger {
      */
 
     public static void log (LEVEL level, CharSequence message) {
-        synchronized (logs) {
-            if (level == LEVEL.DEBUG && message != CUT) {
-                if (pref_debug_logcat) {
-                    Log.d("pw.thedrhax.mosmetro", message.toString());
-                }
-                message = timestamp() + " " + message;
-            }
-            if (logs.containsKey(level)) {
-                logs.get(level).add(message);
-            }
+        if (level == LEVEL.DEBUG && message != CUT) {
+            message = new Event(null, message, null);
+        }
+        write(level, message);
+    }
+
+    /**
+     * Log the message that will be formatted later, only when it is displayed,
+     * shared, reported or written to the log file. Arguments are stored as is,
+     * so they must not be changed after this call.
+     * @see String#format(String, Object...)
+     */
+    public static void log (LEVEL level, String format, Object... args) {
+        if (level == LEVEL.DEBUG) {
+            write(level, new Event(null, format, args));
+        } else {
+            write(level, String.format(Locale.ENGLISH, format, args));
         }
-        onUpdate(level, message);
     }
 
-    public static void log (LEVEL level, Throwable ex) {
+    public static void log (LEVEL level, final Throwable ex) {
         // getStackTraceString ignores DNS errors
         if (ex instanceof UnknownHostException) {
-            log(level, ex.toString());
+            log(level, "%s", ex);
         } else {
-            log(level, Log.getStackTraceString(ex));
+            log(level, "%s", new Object() {
+                @Override
+                public String toString() {
+                    return Log.getStackTraceString(ex);
+                }
+            });
         }
     }
 
@@ -141,19 +223,110 @@ public class Logger {
     }
 
     public static void log (Object obj, CharSequence message) {
-        if (obj instanceof Metadata) {
-            log(LEVEL.DEBUG, String.format(Locale.ENGLISH, "%s (%d) [%s] | %s",
-                    obj.getClass().getSimpleName(),
-                    System.identityHashCode(obj),
-                    ((Metadata)obj).tag(),
-                    message
-            ));
-        } else {
-            log(LEVEL.DEBUG, String.format(Locale.ENGLISH, "%s (%d) | %s",
-                    obj.getClass().getSimpleName(),
-                    System.identityHashCode(obj),
-                    message
-            ));
+        write(LEVEL.DEBUG, new Event(obj, message, null));
+    }
+
+    /**
+     * Same as log(Object, CharSequence), but with deferred formatting
+     * @see #log(LEVEL, String, Object...)
+     */
+    public static void log (Object obj, String format, Object... args) {
+        write(LEVEL.DEBUG, new Event(obj, format, args));
+    }
+
+    private static void write (LEVEL level, CharSequence message) {
+        if (pref_debug_logcat && message instanceof Event) {
+            Log.d("pw.thedrhax.mosmetro", ((Event) message).message());
+        }
+        LogWriter writer = logs.get(level);
+        if (writer != null) {
+            writer.add(message);
+        }
+        onUpdate(level, message);
+    }
+
+    /**
+     * DEBUG message with raw arguments
+     *
+     * Only the timestamp, the source and references to arguments are recorded
+     * by the logging thread. Text is rendered once, when the message is displayed,
+     * shared, reported or written to the log file. The newest messages are not
+     * written to the file until they are pushed out of the buffer (see LogWriter),
+     * so most of them are never rendered at all.
+     */
+    private static class Event implements CharSequence {
+        private final long timestamp;
+        private final Class<?> source;
+        private final int id;
+        private final String tag;
+
+        private CharSequence format;
+        private Object[] args;
+        private volatile String text = null;
+
+        Event(Object source, CharSequence format, Object[] args) {
+            this.timestamp = timestamp();
+            this.source = source != null ? source.getClass() : null;
+            this.id = System.identityHashCode(source);
+            this.tag = source instanceof Metadata ? ((Metadata) source).tag() : null;
+            this.format = format;
+            this.args = args;
+        }
+
+        private boolean isRendered() {
+            return text != null;
+        }
+
+        private String message() {
+            if (args == null || args.length == 0) {
+                return format.toString();
+            } else {
+                return String.format(Locale.ENGLISH, format.toString(), args);
+            }
+        }
+
+        @NonNull @Override
+        public String toString() {
+            String result = text;
+
+            if (result == null) {
+                synchronized (this) {
+                    if (text == null) {
+                        StringBuilder builder = timestamp(new StringBuilder(), timestamp).append(' ');
+
+                        if (source != null) {
+                            builder.append(source.getSimpleName()).append(" (").append(id).append(") ");
+                            if (tag != null) {
+                                builder.append('[').append(tag).append("] ");
+                            }
+                            builder.append("| ");
+                        }
+
+                        text = builder.append(message()).toString();
+
+                        // Release arguments as soon as they are not needed
+                        format = null; args = null;
+                    }
+                    result = text;
+                }
+            }
+
+            return result;
+        }
+
+        @Override
+        public int length() {
+            return toString().length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return toString().charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
         }
     }
 
@@ -166,32 +339,55 @@ public class Logger {
     }
 
     public static void wipe() {
-        synchronized (logs) {
-            for (LogWriter writer : logs.values()) {
-                writer.clear();
-            }
+        for (LogWriter writer : logs.values()) {
+            writer.clear();
+        }
+
+        if (report_file != null) {
+            report_file.delete();
         }
     }
 
     public static void report(String message) {
         if (!pref_debug_testing) return;
         Logger.log(LEVEL.DEBUG, "Sending automated report | " + message);
+        prepareReport();
         ACRA.getErrorReporter().handleSilentException(new Exception(message));
     }
 
+    /**
+     * Name of the file attached to ACRA reports (see MosMetroApp)
+     */
+    public static final String REPORT_FILE = "log-debug.report.txt";
+
+    /**
+     * Write the last DEBUG messages to REPORT_FILE. Must be called before
+     * every ACRA report, because ACRA reads a single file, and the active log
+     * segment may be almost empty right after rotation.
+     */
+    public static void prepareReport() {
+        flush();
+
+        if (report_file == null) return;
+
+        try (Writer writer = new BufferedWriter(new FileWriter(report_file, false))) {
+            for (CharSequence message : logs.get(LEVEL.DEBUG).snapshot()) {
+                writer.append(message).append('\n');
+            }
+        } catch (IOException ignored) {}
+    }
+
     /*
      * Outputs
      */
 
-    public static LinkedList<CharSequence> read(LEVEL level) {
-        synchronized (logs) {
-            return logs.get(level);
-        }
+    public static List<CharSequence> read(LEVEL level) {
+        return logs.get(level);
     }
 
     public static String toString(LEVEL level) {
         StringBuilder result = new StringBuilder();
-        for (CharSequence message : read(level)) {
+        for (CharSequence message : logs.get(level).snapshot()) {
             result.append(message).append("\n");
         }
         return result.toString();
@@ -199,95 +395,301 @@ public class Logger {
 
     /**
      * Log file writer
+     *
+     * Keeps the last messages in a fixed-size ring buffer. Producers only claim a slot
+     * and enqueue the message, while the file is written in batches by the flusher thread.
+     *
+     * Unrendered Events from the newest half of the buffer are kept in the queue until
+     * newer messages push them out, or until flush() is called explicitly (sharing, ACRA
+     * reports, crashes). If the process is killed, only these messages are lost.
+     *
+     * On disk the log is split into segments of (truncate / 2) lines:
+     *     <name>.txt           active segment
+     *     <name>.<N>.txt       archived segments, at most MAX_SEGMENTS of them
+     *     <name>.idx           numbers of the first and the next archived segment
      */
 
-    public static class LogWriter extends LinkedList<CharSequence> {
-        private File file;
-        private FileWriter writer = null;
+    public static class LogWriter extends AbstractList<CharSequence> {
+        private final AtomicReferenceArray<CharSequence> ring;
+        private final AtomicLong head = new AtomicLong(0); // total number of added messages
+        private volatile long tail = 0; // first message after the last clear()
 
-        private static List<String> tail(File file, int lines) {
-            List<String> history = new LinkedList<>();
+        private final Queue<CharSequence> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending_count = new AtomicInteger(0);
+        private final File dir;
+        private final String name;
+        private Writer writer = null;
 
-            if (!file.exists()) return history;
+        private static final int MAX_SEGMENTS = 2;
+        private final int segment_lines;
+        private int active_lines = 0;
+        private long first_segment = 0; // oldest archived segment
+        private long next_segment = 0; // number of the next archived segment
+
+        /**
+         * Read the last lines of the file into the beginning of the history
+         * @return Total number of lines in this file
+         */
+        private static int readTail(File file, int lines, LinkedList<String> history) {
+            if (!file.exists()) return 0;
+
+            LinkedList<String> result = new LinkedList<>();
+            int count = 0;
 
             try (FileReader is = new FileReader(file)) {
                 BufferedReader reader = new BufferedReader(is);
 
                 String line;
                 while ((line = reader.readLine()) != null) {
-                    history.add(line);
+                    result.add(line); count++;
+                    if (result.size() > lines) {
+                        result.removeFirst();
+                    }
                 }
             } catch (IOException ignored) {}
 
-            if (history.size() > lines) {
-                int start = history.size() - lines, end = history.size();
-                history = history.subList(start, end);
+            history.addAll(0, result);
+            return count;
+        }
+
+        public LogWriter(File dir, String name, int truncate) {
+            ring = new AtomicReferenceArray<>(truncate);
+            segment_lines = Math.max(truncate / 2, 1);
+            this.dir = dir;
+            this.name = name;
+
+            readIndex();
+
+            // Only the newest segments are read to fill the ring buffer
+            LinkedList<String> history = new LinkedList<>();
+            active_lines = readTail(segment(-1), truncate, history);
+            for (long n = next_segment - 1; n >= first_segment && history.size() < truncate; n--) {
+                readTail(segment(n), truncate - history.size(), history);
+            }
+
+            for (String line : history) {
+                push(line);
             }
 
-            return history;
+            try {
+                writer = new BufferedWriter(new FileWriter(segment(-1), true));
+            } catch (IOException ignored) {}
         }
 
-        public LogWriter(File dir, String filename, int truncate) {
-            file = new File(dir, filename);
+        public LogWriter(int truncate) {
+            ring = new AtomicReferenceArray<>(truncate);
+            segment_lines = truncate;
+            dir = null;
+            name = null;
+        }
+
+        /**
+         * @param n Number of archived segment or -1 for the active one
+         */
+        private File segment(long n) {
+            return new File(dir, n < 0 ? name + ".txt" : name + "." + n + ".txt");
+        }
 
-            List<String> history = tail(file, truncate);
+        private void readIndex() {
+            File index = new File(dir, name + ".idx");
+            if (!index.exists()) return;
 
-            clear();
+            try (FileReader is = new FileReader(index)) {
+                String line = new BufferedReader(is).readLine();
+                if (line == null) return;
 
-            if (history.size() > 0) {
-                addAll(history);
+                String[] numbers = line.trim().split(" ");
+                if (numbers.length != 2) return;
+
+                first_segment = Long.parseLong(numbers[0]);
+                next_segment = Long.parseLong(numbers[1]);
+            } catch (IOException | NumberFormatException ex) {
+                first_segment = next_segment = 0;
+            }
+        }
+
+        private void writeIndex() {
+            try (FileWriter index = new FileWriter(new File(dir, name + ".idx"), false)) {
+                index.write(first_segment + " " + next_segment + "\n");
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * Archive the active segment and drop the oldest ones
+         */
+        private void rotate() throws IOException {
+            writer.close();
+            writer = null;
+
+            segment(-1).renameTo(segment(next_segment++));
+
+            while (next_segment - first_segment > MAX_SEGMENTS) {
+                segment(first_segment++).delete();
             }
+
+            writeIndex();
+
+            active_lines = 0;
+            writer = new BufferedWriter(new FileWriter(segment(-1), false));
         }
 
-        public LogWriter() {
-            file = null;
+        private void push(CharSequence e) {
+            long index = head.getAndIncrement();
+            ring.set((int) (index % ring.length()), e);
         }
 
         @Override
         public boolean add(CharSequence e) {
-            try {
-                if (writer != null) {
-                    writer.write(e.toString() + '\n');
-                    writer.flush();
-                }
-            } catch (IOException ignored) {}
-            return super.add(e);
+            push(e);
+
+            if (dir != null) {
+                pending.offer(e);
+                pending_count.incrementAndGet();
+            }
+
+            return true;
+        }
+
+        private long start(long head) {
+            return Math.max(tail, head - ring.length());
         }
 
         @Override
-        public boolean addAll(Collection<? extends CharSequence> c) {
-            for (CharSequence line : c) {
-                try {
-                    if (writer != null) writer.write(line.toString() + '\n');
-                } catch (IOException ignored) {}
+        public CharSequence get(int index) {
+            long head = this.head.get();
+            long position = start(head) + index;
+
+            if (index < 0 || position >= head) {
+                throw new IndexOutOfBoundsException();
             }
 
-            try {
-                if (writer != null) writer.flush();
-            } catch (IOException ignored) {}            
+            // Slot may be claimed, but not yet filled by a concurrent add()
+            CharSequence result = ring.get((int) (position % ring.length()));
+            return result != null ? result : "";
+        }
+
+        @Override
+        public int size() {
+            return (int) (head.get() - start(head.get()));
+        }
+
+        /**
+         * @return Consistent copy of all messages currently stored in the buffer
+         */
+        public List<CharSequence> snapshot() {
+            long head = this.head.get();
+            List<CharSequence> result = new ArrayList<>((int) (head - start(head)));
+
+            for (long i = start(head); i < head; i++) {
+                CharSequence message = ring.get((int) (i % ring.length()));
+                if (message != null) {
+                    result.add(message);
+                }
+            }
 
-            return super.addAll(c);
+            return result;
         }
 
         @Override
         public void clear() {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException ignored) {}
-                writer = null;
+            tail = head.get();
+
+            synchronized (this) {
+                pending.clear();
+                pending_count.set(0);
+                close();
+
+                if (dir != null) {
+                    while (first_segment < next_segment) {
+                        segment(first_segment++).delete();
+                    }
+                    first_segment = next_segment = 0;
+                    writeIndex();
+
+                    active_lines = 0;
+                    try {
+                        writer = new BufferedWriter(new FileWriter(segment(-1), false));
+                    } catch (IOException ignored) {}
+                }
+            }
+        }
+
+        /**
+         * Write all queued messages to the file and flush it
+         */
+        public void flush() {
+            flush(true);
+        }
+
+        /**
+         * @param all Also write the newest Events that were not rendered yet
+         */
+        private synchronized void flush(boolean all) {
+            if (writer == null) {
+                pending.clear();
+                pending_count.set(0);
+                return;
             }
 
-            if (file != null) {
-                try {
-                    writer = new FileWriter(file, false);
-                } catch (IOException ignored) {}
+            try {
+                boolean dirty = false;
+
+                CharSequence line;
+                while ((line = pending.peek()) != null) {
+                    if (!all && line instanceof Event && !((Event) line).isRendered()
+                            && pending_count.get() <= ring.length() / 2) {
+                        break;
+                    }
+
+                    pending.poll();
+                    pending_count.decrementAndGet();
+
+                    if (active_lines >= segment_lines) {
+                        rotate();
+                    }
+
+                    writer.append(line).append('\n');
+                    active_lines++;
+                    dirty = true;
+                }
+
+                if (dirty) {
+                    writer.flush();
+                }
+            } catch (IOException ignored) {}
+        }
+
+        /**
+         * Stream the whole log to the output without building it in memory.
+         * Archived segments are concatenated with the active one.
+         */
+        public synchronized void writeTo(Writer output) throws IOException {
+            if (dir == null) {
+                for (CharSequence message : snapshot()) {
+                    output.append(message).append('\n');
+                }
+                return;
             }
 
-            super.clear();
+            flush();
+
+            char[] buffer = new char[8192];
+            for (long n = first_segment; n <= next_segment; n++) {
+                File segment = segment(n == next_segment ? -1 : n);
+                if (!segment.exists()) continue;
+
+                try (FileReader reader = new FileReader(segment)) {
+                    int count;
+                    while ((count = reader.read(buffer)) != -1) {
+                        output.write(buffer, 0, count);
+                    }
+                }
+            }
         }
 
-        public void close() {
+        public synchronized void close() {
+            flush();
+
             try {
                 if (writer != null) {
                     writer.close();
@@ -304,9 +706,9 @@ public class Logger {
     public static Uri writeToFile(Context context) throws IOException {
         File log_file = new File(context.getFilesDir(), "pw.thedrhax.mosmetro.txt");
 
-        FileWriter writer = new FileWriter(log_file);
-        writer.write(toString(Logger.LEVEL.DEBUG));
-        writer.flush(); writer.close();
+        try (Writer writer = new BufferedWriter(new FileWriter(log_file))) {
+            logs.get(Logger.LEVEL.DEBUG).writeTo(writer);
+        }
 
         return FileProvider.getUriForFile(context, "pw.thedrhax.mosmetro.provider", log_file);
     }
@@ -325,7 +727,7 @@ public class Logger {
         } catch (IOException ex) {
             Logger.log(Logger.LEVEL.DEBUG, ex);
             Logger.log(context.getString(R.string.error, context.getString(R.string.error_log_file)));
-            share.putExtra(Intent.EXTRA_TEXT, read(Logger.LEVEL.DEBUG));
+            share.putExtra(Intent.EXTRA_TEXT, toString(Logger.LEVEL.DEBUG));
         }
 
         context.startActivity(Intent.createChooser(
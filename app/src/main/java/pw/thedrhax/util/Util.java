@@ -22,9 +22,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.StringReader;
 
@@ -53,18 +51,4 @@ public final class Util {
 
         return def_value;
     }
-
-    // Source: https://stackoverflow.com/a/34836992
-    public static String readAsset(Context context, String filename) throws IOException {
-        BufferedReader reader = new BufferedReader(
-                new InputStreamReader(context.getAssets().open(filename), "UTF-8"));
-        StringBuilder sb = new StringBuilder();
-        String mLine = reader.readLine();
-        while (mLine != null) {
-            sb.append(mLine).append('\n');
-            mLine = reader.readLine();
-        }
-        reader.close();
-        return sb.toString();
-    }
 }
@@ -86,6 +86,12 @@ public class WifiUtils {
         return getSSID(null);
     }
 
+    // Get BSSID directly from WifiManager
+    @Nullable
+    public String getBSSID() {
+        return wm.getConnectionInfo().getBSSID();
+    }
+
     // Get current IP from WifiManager
     public int getIP() {
         return wm.getConnectionInfo().getIpAddress();
@@ -0,0 +1,74 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.authenticator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static pw.thedrhax.mosmetro.authenticator.Gen204.FAILED;
+import static pw.thedrhax.mosmetro.authenticator.Gen204.PENDING;
+import static pw.thedrhax.mosmetro.authenticator.Gen204.decide;
+
+public class Gen204Test {
+    @Test
+    public void unreliableProbeDecidesFirst() {
+        assertEquals(Gen204.Verdict.PENDING, decide(PENDING, 204, 204));
+        assertEquals(Gen204.Verdict.UNREACHABLE, decide(FAILED, 204, 204));
+        assertEquals(Gen204.Verdict.UNREACHABLE, decide(FAILED, PENDING, PENDING));
+    }
+
+    @Test
+    public void waitsForReliableHttps() {
+        assertEquals(Gen204.Verdict.PENDING, decide(204, PENDING, 204));
+        assertEquals(Gen204.Verdict.PENDING, decide(302, PENDING, FAILED));
+    }
+
+    @Test
+    public void positive() {
+        assertEquals(Gen204.Verdict.POSITIVE, decide(204, 204, PENDING));
+        assertEquals(Gen204.Verdict.POSITIVE, decide(204, 204, 302));
+    }
+
+    @Test
+    public void falsePositive() {
+        // Reliable HTTP is needed only if HTTPS doesn't confirm the result
+        assertEquals(Gen204.Verdict.PENDING, decide(204, FAILED, PENDING));
+        assertEquals(Gen204.Verdict.FALSE_POSITIVE, decide(204, FAILED, 302));
+        assertEquals(Gen204.Verdict.FALSE_POSITIVE, decide(204, 200, 200));
+        assertEquals(Gen204.Verdict.UNEXPECTED, decide(204, FAILED, 204));
+        assertEquals(Gen204.Verdict.UNEXPECTED, decide(204, FAILED, FAILED));
+    }
+
+    @Test
+    public void negative() {
+        assertEquals(Gen204.Verdict.NEGATIVE, decide(302, FAILED, PENDING));
+        assertEquals(Gen204.Verdict.NEGATIVE, decide(200, FAILED, 204));
+    }
+
+    @Test
+    public void falseNegative() {
+        assertEquals(Gen204.Verdict.FALSE_NEGATIVE, decide(302, 204, PENDING));
+        assertEquals(Gen204.Verdict.FALSE_NEGATIVE, decide(302, 204, FAILED));
+    }
+
+    @Test
+    public void interceptedHttps() {
+        assertEquals(Gen204.Verdict.UNEXPECTED, decide(302, 302, PENDING));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.mosmetro.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static pw.thedrhax.mosmetro.services.ConnectionState.AUTH;
+import static pw.thedrhax.mosmetro.services.ConnectionState.BACKOFF;
+import static pw.thedrhax.mosmetro.services.ConnectionState.DETECT;
+import static pw.thedrhax.mosmetro.services.ConnectionState.IDLE;
+import static pw.thedrhax.mosmetro.services.ConnectionState.MONITOR;
+import static pw.thedrhax.mosmetro.services.ConnectionState.WAIT_IP;
+
+public class ConnectionStateTest {
+    @Test
+    public void connection() {
+        assertEquals(WAIT_IP, IDLE.next(ConnectionState.Event.START));
+        assertEquals(DETECT, WAIT_IP.next(ConnectionState.Event.IP_READY));
+        assertEquals(AUTH, DETECT.next(ConnectionState.Event.DETECTED));
+        assertEquals(MONITOR, AUTH.next(ConnectionState.Event.CONNECTED));
+        assertEquals(WAIT_IP, MONITOR.next(ConnectionState.Event.DISCONNECTED));
+    }
+
+    @Test
+    public void retries() {
+        assertEquals(BACKOFF, AUTH.next(ConnectionState.Event.FAILED));
+        assertEquals(AUTH, BACKOFF.next(ConnectionState.Event.RETRY));
+        assertEquals(WAIT_IP, AUTH.next(ConnectionState.Event.RESTART));
+    }
+
+    @Test
+    public void intents() {
+        for (ConnectionState state : ConnectionState.values()) {
+            assertEquals(IDLE, state.next(ConnectionState.Event.STOP));
+            assertEquals(WAIT_IP, state.next(ConnectionState.Event.START));
+        }
+    }
+
+    @Test
+    public void unexpectedEvents() {
+        int expected = 0;
+
+        for (ConnectionState state : ConnectionState.values()) {
+            for (ConnectionState.Event event : ConnectionState.Event.values()) {
+                try {
+                    state.next(event);
+                } catch (IllegalStateException ex) {
+                    expected++;
+                }
+            }
+        }
+
+        // 6 states * 9 events, minus STOP and START in every state and 7 transitions
+        assertEquals(6 * 9 - 12 - 7, expected);
+
+        try {
+            IDLE.next(ConnectionState.Event.IP_READY);
+            fail();
+        } catch (IllegalStateException ignored) {}
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Wi-Fi в метро (pw.thedrhax.mosmetro, Moscow Wi-Fi autologin)
+ * Copyright © 2015 Dmitry Karikh <the.dr.hax@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pw.thedrhax.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerTest {
+    private final Listener.Clock system = Listener.clock;
+
+    @After
+    public void restoreClock() {
+        Listener.clock = system;
+    }
+
+    /**
+     * Start a thread that sleeps on the Listener for a long time
+     * @param returned Time in milliseconds when sleep() has returned
+     */
+    private static Thread sleeper(Listener<Boolean> running, AtomicLong returned) {
+        Thread thread = new Thread(() -> {
+            running.sleep(60000);
+            returned.set(System.nanoTime() / 1000000);
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void stopLatency() throws InterruptedException {
+        long total = 0;
+
+        for (int i = 0; i < 10; i++) {
+            Listener<Boolean> running = new Listener<>(true);
+            AtomicLong returned = new AtomicLong();
+
+            Thread thread = sleeper(running, returned);
+            awaitWaiting(thread);
+
+            long stopped = System.nanoTime() / 1000000;
+            running.set(false);
+            thread.join(5000);
+
+            assertFalse(thread.isAlive());
+            total += returned.get() - stopped;
+        }
+
+        // Polling every 100 ms gives 50 ms on average
+        assertTrue("Average stop latency: " + total / 10 + " ms", total / 10 < 20);
+    }
+
+    @Test
+    public void wakeUpCount() throws InterruptedException {
+        final AtomicInteger calls = new AtomicInteger(0);
+        Listener.clock = () -> {
+            calls.incrementAndGet();
+            return system.millis();
+        };
+
+        Listener<Boolean> running = new Listener<>(true);
+
+        // Every wake up of the sleeping thread checks the clock once
+        long start = System.nanoTime();
+        assertTrue(running.sleep(500));
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("Returned after " + elapsed + " ms", elapsed >= 500);
+        assertTrue("Clock checked " + calls.get() + " times", calls.get() <= 4);
+    }
+
+    @Test
+    public void sleepReturnsNewValue() throws InterruptedException {
+        Listener<Boolean> running = new Listener<>(true);
+        AtomicReference<Boolean> result = new AtomicReference<>();
+
+        Thread thread = new Thread(() -> result.set(running.sleep(60000)));
+        thread.start();
+        awaitWaiting(thread);
+
+        running.set(false);
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertEquals(false, result.get());
+    }
+
+    @Test
+    public void subscriberWakesUp() throws InterruptedException {
+        Listener<Boolean> master = new Listener<>(true);
+        Listener<Boolean> child = new Listener<>(false);
+        child.subscribe(master);
+        assertEquals(true, child.get());
+
+        AtomicLong returned = new AtomicLong();
+        Thread thread = sleeper(child, returned);
+        awaitWaiting(thread);
+
+        master.set(false);
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertEquals(false, child.get());
+    }
+
+    private static int countThreads(String name) {
+        int result = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) result++;
+        }
+        return result;
+    }
+
+    /**
+     * Listeners of one connection attempt: the service flag and short-lived
+     * subscribers (Provider, Client, Gen204...), debounced here to use the scheduler
+     */
+    private static void run(AtomicInteger changes) {
+        Listener<Boolean> service = new Listener<>(true);
+
+        for (int i = 0; i < 5; i++) {
+            Listener<Boolean> child = new Listener<Boolean>(true) {
+                @Override
+                public void onChange(Boolean new_value) {
+                    changes.incrementAndGet();
+                }
+            }.debounce(10);
+
+            child.subscribe(service);
+        }
+
+        service.set(false);
+        service.set(true);
+    }
+
+    @Test
+    public void schedulerThreadLeak() throws InterruptedException {
+        AtomicInteger changes = new AtomicInteger(0);
+        int threads = Thread.activeCount();
+
+        for (int i = 0; i < 50; i++) {
+            run(changes);
+            assertTrue(countThreads(Listener.Scheduler.THREAD_NAME) <= 1);
+        }
+
+        // Only the last change of every debounced Listener is delivered
+        long deadline = System.currentTimeMillis() + 5000;
+        while (changes.get() < 50 * 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(50 * 5, changes.get());
+
+        assertTrue(Thread.activeCount() <= threads + 1);
+
+        // Idle scheduler thread exits
+        deadline = System.currentTimeMillis() + (Listener.Scheduler.KEEP_ALIVE + 5) * 1000;
+        while (countThreads(Listener.Scheduler.THREAD_NAME) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, countThreads(Listener.Scheduler.THREAD_NAME));
+    }
+}